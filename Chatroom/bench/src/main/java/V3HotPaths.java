@@ -0,0 +1,81 @@
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import chatbench.HotPaths;
+
+// chatbench.HotPaths over the real v3 classes.
+public class V3HotPaths implements HotPaths {
+    private static Message message(String kind) {
+        return switch (kind) {
+            case "text" -> new Message(Message.MessageType.TEXT, "alice", null, "anyone up for lunch at noon?");
+            case "code" -> new Message(Message.MessageType.CODE, "bob", "alice",
+                    "for (int i = 0; i < n; i++) {\n    sum += a[i];\n}\nreturn sum;".repeat(8));
+            default -> throw new IllegalArgumentException(kind);
+        };
+    }
+
+    public Op encode(String kind) {
+        Message msg = message(kind);
+        return () -> MessageCodec.encode(msg).length;
+    }
+
+    public Op decode(String kind) {
+        DataInputStream in = new DataInputStream(new CodecBench.RepeatingInputStream(MessageCodec.encode(message(kind))));
+        return () -> MessageCodec.read(in).getContent().length();
+    }
+
+    public Op fanout(int members) {
+        List<OutboundQueue<Frame>> queues = new ArrayList<>();
+        for (int i = 0; i < members; i++) queues.add(new OutboundQueue<>(16));
+        Frame frame = new Frame(MessageCodec.encode(message("text")));
+        return () -> {
+            for (OutboundQueue<Frame> queue : queues) queue.offer(frame.retain());
+            long n = 0;
+            for (OutboundQueue<Frame> queue : queues) {
+                Frame queued = queue.poll();
+                n += queued.bufferCount();
+                queued.release();
+            }
+            return n;
+        };
+    }
+
+    public Op readChunks(Path dir) throws Exception {
+        Path file = dir.resolve("send.bin");
+        Files.write(file, data());
+        return () -> {
+            long[] n = {0};
+            FileTransfer.sendChunks(file.toFile(), "bench", "alice", "bob", 0, (header, fc, position, length) -> n[0] += header.getChecksum());
+            return n[0];
+        };
+    }
+
+    public Op writeChunk(Path dir) throws Exception {
+        byte[] chunk = Arrays.copyOf(data(), FileTransfer.CHUNK_SIZE);
+        long checksum = FileTransfer.checksum(ByteBuffer.wrap(chunk));
+        ChannelInput in = new ChannelInput(Channels.newChannel(new CodecBench.RepeatingInputStream(chunk)));
+        Path target = dir.resolve("received.bin");
+        Path part = dir.resolve("received.part");
+        FileTransfer.Download[] download = {null};
+        return () -> {
+            if (download[0] == null || download[0].isComplete()) download[0] = new FileTransfer.Download(target, part, FILE_BYTES);
+            Message header = new Message(Message.MessageType.FILE_CHUNK, "alice", "bob", "bench.bin", "bench",
+                    FILE_BYTES, download[0].getReceived(), null, checksum);
+            download[0].write(header, chunk.length, in);
+            return download[0].getReceived();
+        };
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[FILE_BYTES];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
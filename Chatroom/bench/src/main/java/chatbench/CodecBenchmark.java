@@ -0,0 +1,37 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// MessageCodec encode and decode of a short chat line and a code snippet.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"text", "code"})
+    public String kind;
+
+    private HotPaths.Op encode;
+    private HotPaths.Op decode;
+
+    @Setup
+    public void setUp() throws Exception {
+        HotPaths paths = HotPaths.load();
+        encode = paths.encode(kind);
+        decode = paths.decode(kind);
+    }
+
+    @Benchmark
+    public long encode() throws Exception {
+        return encode.run();
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        return decode.run();
+    }
+}
@@ -0,0 +1,29 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The v2 server's /to parsing, and the same without a regex split and its
+// array.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark {
+    public String line = "/to bob are you coming to the standup?";
+
+    @Benchmark
+    public int split() {
+        String[] parts = line.split(" ", 3);
+        return parts.length == 3 ? parts[1].length() + parts[2].length() : 0;
+    }
+
+    @Benchmark
+    public int indexOf() {
+        int space = line.indexOf(' ', 4);
+        return space < 0 ? 0 : line.substring(4, space).length() + line.substring(space + 1).length();
+    }
+}
@@ -0,0 +1,29 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One broadcast frame through every member's outbound queue.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    private HotPaths.Op fanout;
+
+    @Setup
+    public void setUp() throws Exception {
+        fanout = HotPaths.load().fanout(members);
+    }
+
+    @Benchmark
+    public long fanout() throws Exception {
+        return fanout.run();
+    }
+}
@@ -0,0 +1,48 @@
+package chatbench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// FileTransfer chunk reads for a whole HotPaths.FILE_BYTES file, and
+// single-chunk writes into a download.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileChunkBenchmark {
+    private Path dir;
+    private HotPaths.Op readChunks;
+    private HotPaths.Op writeChunk;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("chatbench");
+        HotPaths paths = HotPaths.load();
+        readChunks = paths.readChunks(dir);
+        writeChunk = paths.writeChunk(dir);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long readChunks() throws Exception {
+        return readChunks.run();
+    }
+
+    @Benchmark
+    public long writeChunk() throws Exception {
+        return writeChunk.run();
+    }
+}
@@ -0,0 +1,34 @@
+package chatbench;
+
+import java.nio.file.Path;
+
+// The v3 classes live in the default package, which JMH benchmarks (in a
+// package of their own, as JMH requires) cannot name. V3HotPaths sits
+// beside them and hands each benchmark the operation it measures.
+public interface HotPaths {
+    int FILE_BYTES = 4 * 1024 * 1024;
+
+    // One call of the measured code; the result goes to a Blackhole.
+    interface Op {
+        long run() throws Exception;
+    }
+
+    // kind is "text" or "code".
+    Op encode(String kind);
+
+    Op decode(String kind);
+
+    // ChatServer.broadcast: one shared frame queued to every member, then
+    // taken off again as their writers would.
+    Op fanout(int members);
+
+    // Sender side: mapping and checksumming FILE_BYTES chunk by chunk.
+    Op readChunks(Path dir) throws Exception;
+
+    // Receiver side: one chunk from the socket into a download.
+    Op writeChunk(Path dir) throws Exception;
+
+    static HotPaths load() throws ReflectiveOperationException {
+        return (HotPaths) Class.forName("V3HotPaths").getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,59 @@
+package chatbench;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Lookups and full scans of the username map while other threads do the
+// same, and logins/logouts racing each other.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    @Param("10000")
+    public int users;
+
+    private final Map<String, Object> registry = new ConcurrentHashMap<>();
+    private String[] names;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = ThreadLocalRandom.current().nextInt(1 << 20);
+    }
+
+    @Setup
+    public void setUp() {
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            registry.put(names[i], new Object());
+        }
+    }
+
+    @Benchmark
+    public Object lookup(Cursor cursor) {
+        return registry.get(names[cursor.next++ % users]);
+    }
+
+    @Benchmark
+    public long iterate() {
+        long n = 0;
+        for (Object client : registry.values()) n += client.hashCode() & 1;
+        return n;
+    }
+
+    @Benchmark
+    public Object churn(Cursor cursor) {
+        String name = names[cursor.next++ % users];
+        Object client = registry.remove(name);
+        if (client != null) registry.put(name, client);
+        return client;
+    }
+}
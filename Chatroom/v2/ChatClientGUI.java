@@ -4,7 +4,9 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.List;
 
 public class ChatClientGUI {
     private JFrame frame;
@@ -12,12 +14,17 @@ public class ChatClientGUI {
     private JTextField messageField;
     private JTextArea codeArea;
     private JButton sendBtn, sendCodeBtn;
-    private JComboBox<String> userList;
-    private DefaultComboBoxModel<String> userModel;
+    private UserList userList;
+    // Version of the last presence snapshot or delta applied; EDT only.
+    private long presenceVersion = -1;
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
     private String username;
+    // Reader thread only
+    private boolean loggedIn;
+    // Server lines on their way to the EDT.
+    private final EdtQueue<String> incoming = new EdtQueue<>(this::showLines);
 
     public ChatClientGUI() {
         showConnectionDialog();
@@ -43,8 +50,8 @@ public class ChatClientGUI {
     private void connectToServer(String ip, int port) {
         try {
             socket = new Socket(ip, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
 
             new Thread(() -> listen()).start();
         } catch (IOException e) {
@@ -87,15 +94,10 @@ public class ChatClientGUI {
         codePanel.add(codeScroll, BorderLayout.CENTER);
         codePanel.add(sendCodeBtn, BorderLayout.EAST);
 
-        userModel = new DefaultComboBoxModel<>();
-        userList = new JComboBox<>(userModel);
-        userList.addItem("Public");
+        userList = new UserList();
+        userList.setSelf(username);
 
-        JPanel topPanel = new JPanel(new BorderLayout());
-        topPanel.add(new JLabel("Send To:"), BorderLayout.WEST);
-        topPanel.add(userList, BorderLayout.CENTER);
-
-        frame.add(topPanel, BorderLayout.NORTH);
+        frame.add(userList.getComponent(), BorderLayout.WEST);
         frame.add(scrollPane, BorderLayout.CENTER);
         frame.add(codePanel, BorderLayout.SOUTH);
         frame.add(bottomPanel, BorderLayout.PAGE_END);
@@ -111,8 +113,8 @@ public class ChatClientGUI {
         String msg = messageField.getText().trim();
         if (msg.isEmpty()) return;
 
-        String target = (String) userList.getSelectedItem();
-        if (!"Public".equals(target)) {
+        String target = userList.getSelected();
+        if (!UserList.PUBLIC.equals(target)) {
             out.println("/to " + target + " " + msg);
         } else {
             out.println(msg);
@@ -120,27 +122,23 @@ public class ChatClientGUI {
         messageField.setText("");
     }
 
+    // The whole snippet goes as one length-prefixed block, so the server
+    // forwards it in one piece.
     private void sendCode() {
-        String code = codeArea.getText().trim();
-        if (code.isEmpty()) return;
-
-        String target = (String) userList.getSelectedItem();
-        if (!"Public".equals(target)) {
-            out.println("/code " + target);
-        } else {
-            out.println("/code " + username); // send to self for broadcast
-        }
-        for (String line : code.split("\n")) {
-            out.println(line);
-        }
-        out.println("/end");
+        String code = codeArea.getText().stripTrailing();
+        if (code.isBlank()) return;
+
+        String target = userList.getSelected();
+        if (UserList.PUBLIC.equals(target)) target = username; // send to self for broadcast
+        byte[] bytes = (code + "\n").getBytes(StandardCharsets.UTF_8);
+        out.print("/codebytes " + bytes.length + " " + target + "\n" + code + "\n");
+        out.flush();
         codeArea.setText("");
     }
 
     private void listen() {
     try {
         String msg;
-        boolean guiInitialized = false;
 
         while ((msg = in.readLine()) != null) {
             if (msg.equals("USERNAME_REQUEST")) {
@@ -148,39 +146,73 @@ public class ChatClientGUI {
             } else if (msg.equals("USERNAME_TAKEN")) {
                 JOptionPane.showMessageDialog(null, "Username already taken.");
                 askUsername();
+            } else if (msg.equals("SERVER_BUSY")) {
+                incoming.post("Server is busy, try again later.");
+                JOptionPane.showMessageDialog(null, "Server is busy, try again later.");
+            } else if (msg.equals("PING")) {
+                out.println("/pong");
+            } else if (msg.startsWith("CODE\t")) {
+                incoming.post(readCode(msg.split("\t")));
             } else {
-                if (!guiInitialized) {
-                    setupGUI(); // ✅ Safe to setup now
-                    guiInitialized = true;
+                // The first snapshot means we are in; tell the server we
+                // answer PINGs.
+                if (!loggedIn && msg.startsWith("PRESENCE\t")) {
+                    loggedIn = true;
+                    out.println("/pong");
                 }
-
-                chatArea.append(msg + "\n");
-                updateUserList(msg);
+                incoming.post(msg);
             }
         }
     } catch (IOException e) {
-        if (chatArea != null) {
-            chatArea.append("Connection closed.\n");
-        }
+        incoming.post("Connection closed.");
     }
 }
 
+    // CODE from to lines, then that many lines of code; shown as one
+    // indented block.
+    private String readCode(String[] f) throws IOException {
+        String from = f[1], to = f[2];
+        StringBuilder block = new StringBuilder(to.isEmpty() ? from + " shared code:"
+                : from.equals(username) ? "[To " + to + "] code:" : "[Private] " + from + " shared code:");
+        for (int i = Integer.parseInt(f[3]); i > 0; i--) {
+            String line = in.readLine();
+            if (line == null) break;
+            block.append("\n    ").append(line);
+        }
+        return block.toString();
+    }
 
-    private void updateUserList(String msg) {
-        if (msg.startsWith("Server") && msg.contains("joined")) {
-            String[] parts = msg.split(" ");
-            if (parts.length >= 2) {
-                String newUser = parts[1];
-                if (!newUser.equals(username) && userModel.getIndexOf(newUser) == -1) {
-                    userModel.addElement(newUser);
-                }
-            }
-        } else if (msg.startsWith("Server") && msg.contains("left")) {
-            String[] parts = msg.split(" ");
-            if (parts.length >= 2) {
-                userModel.removeElement(parts[1]);
-            }
+    // Runs on the EDT with every line that arrived during the last frame:
+    // one append and one repaint for the lot.
+    private void showLines(List<String> lines) {
+        if (frame == null) setupGUI();
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            if (line.startsWith("PRESENCE\t")) applyPresence(line.split("\t"));
+            else text.append(line).append('\n');
+        }
+        chatArea.append(text.toString());
+    }
+
+    // See Presence on the server. A delta that does not follow the last
+    // version applied means we missed one, so ask for a fresh snapshot.
+    private void applyPresence(String[] f) {
+        if (f[1].equals("S")) {
+            userList.setAll(Arrays.asList(f).subList(3, f.length));
+            presenceVersion = Long.parseLong(f[2]);
+            return;
+        }
+        if (Long.parseLong(f[2]) != presenceVersion) {
+            out.println("/users");
+            return;
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (int i = 4; i < f.length; i++) {
+            (f[i].charAt(0) == '+' ? joined : left).add(f[i].substring(1));
         }
+        userList.update(joined, left);
+        presenceVersion = Long.parseLong(f[3]);
     }
 
     public static void main(String[] args) {
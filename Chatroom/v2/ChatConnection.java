@@ -0,0 +1,31 @@
+public interface ChatConnection {
+    String getUsername();
+    void setUsername(String username);
+    Room getRoom();
+    void setRoom(Room room);
+    void send(Frame frame);
+    // Frames queued for this connection and not yet written.
+    int queuedFrames();
+    // The next length bytes read are raw data for
+    // ConnectionListener.payloadReceived rather than lines. Called from
+    // lineReceived.
+    void expectPayload(int length);
+    // System.nanoTime() of the last bytes read from the client and of the
+    // last write to it that made progress.
+    long lastReadNanos();
+    long lastWriteNanos();
+    // Stop reading lines (and payloads) from the client after the current
+    // one, until resumeReads. Called from lineReceived or payloadReceived;
+    // resumeReads from any thread.
+    void pauseReads();
+    void resumeReads();
+    void close();
+    // Closes at once, without waiting for what is queued to go out.
+    void abort();
+
+    default void send(String msg) {
+        Frame frame = Frame.of(msg);
+        send(frame);
+        frame.release();
+    }
+}
@@ -0,0 +1,874 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// The chat server itself, with no GUI: runs as a daemon through main, or
+// inside ChatServerGUI, which only watches its log.
+//
+//   java ChatServerCore [port]
+public class ChatServerCore implements ConnectionListener, ClusterListener {
+    private static final LongAdder connections = Metrics.counter("chat_connections_total", "Connections accepted");
+    private static final LongAdder loginLines = received("login");
+    private static final LongAdder roomLines = received("room");
+    private static final LongAdder privateLines = received("private");
+    private static final LongAdder commandLines = received("command");
+    private static final LongAdder codeBlocks = received("code");
+    private static final LatencyHistogram fanout = Metrics.histogram("chat_broadcast_fanout_seconds",
+            "Time to queue one room line to every member");
+    private static final LongAdder pingsSent = Metrics.counter("chat_pings_sent_total", "PING lines sent to silent clients");
+    private static final LongAdder evictedIdle = evictions("idle");
+    private static final LongAdder evictedStalled = evictions("stalled");
+    private static final LongAdder throttledUser = throttled("user");
+    private static final LongAdder throttledRoom = throttled("room");
+    private static final LongAdder rejected = Metrics.counter("chat_connections_rejected_total",
+            "Connections turned away with SERVER_BUSY");
+    // -Dchat.maxCodeBytes: largest code snippet accepted (65536).
+    private static final int MAX_CODE_BYTES = Integer.getInteger("chat.maxCodeBytes", 64 * 1024);
+    // -Dchat.pingMillis: a client silent this long is sent PING (15000,
+    // 0 turns heartbeats off). -Dchat.idleMillis: one that answers pings
+    // and stays silent this long is evicted (45000). -Dchat.stallMillis:
+    // one whose queued lines do not move for this long is evicted (30000).
+    private static final long PING_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.pingMillis", 15_000));
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idleMillis", 45_000));
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.stallMillis", 30_000));
+    // -Dchat.maxConnections: open connections beyond this are sent
+    // SERVER_BUSY and closed as they are accepted (100000, 0 for no limit).
+    private static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 100_000);
+
+    private final int port;
+    private final ServerLog serverLog = new ServerLog();
+    private ServerSocketChannel serverChannel;
+    private NioServer nioServer;
+    private ExecutorService executor;
+    private Map<String, ChatConnection> clients = new ConcurrentHashMap<>();
+    // Empty rooms other than the lobby are dropped.
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Waiting on the cluster to confirm their username.
+    private final Set<ChatConnection> loggingIn = ConcurrentHashMap.newKeySet();
+    // Code snippets still arriving, one per connection at most.
+    private final Map<ChatConnection, CodeBlock> pendingCode = new ConcurrentHashMap<>();
+    private final Cluster cluster;
+    private final Presence presence = new Presence(this::log);
+    private final Map<ChatConnection, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+    // Logged-in clients' RateLimits, when those are on.
+    private final Map<ChatConnection, Budget> budgets = new ConcurrentHashMap<>();
+    // Admitted and not disconnected yet, logged in or not.
+    private final AtomicInteger open = new AtomicInteger();
+    // Heartbeats and the end of rate limit pauses.
+    private TimerWheel timers;
+
+    public ChatServerCore(int port) {
+        this.port = port;
+        cluster = Cluster.fromProperties(this);
+    }
+
+    public ServerLog getLog() { return serverLog; }
+
+    private static LongAdder received(String kind) {
+        return Metrics.counter("chat_lines_received_total", "Lines received from clients", "kind", kind);
+    }
+
+    private static LongAdder evictions(String reason) {
+        return Metrics.counter("chat_clients_evicted_total", "Clients evicted by the heartbeat", "reason", reason);
+    }
+
+    private static LongAdder throttled(String limit) {
+        return Metrics.counter("chat_clients_throttled_total", "Reads paused for going over a rate limit", "limit", limit);
+    }
+
+    public void start() {
+        if (PING_NANOS > 0 || RateLimit.ENABLED) timers = new TimerWheel("chat-timer");
+        startMetrics();
+        if (cluster != null) {
+            try {
+                cluster.start();
+                log("Cluster node " + cluster.getSelf() + " of " + cluster.size());
+            } catch (IOException e) {
+                log("Cluster error: " + e.getMessage());
+            }
+        }
+        startServer();
+    }
+
+    public void stop() {
+        if (nioServer != null) nioServer.stop();
+        if (executor != null) executor.shutdownNow();
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        if (cluster != null) cluster.stop();
+        if (timers != null) timers.stop();
+        presence.stop();
+        Metrics.stop();
+        serverLog.close();
+    }
+
+    private void startMetrics() {
+        Metrics.gauge("chat_clients", "Logged in clients", clients::size);
+        Metrics.gauge("chat_connections_open", "Open connections, logging in or not", open::get);
+        Metrics.gauge("chat_rooms", "Open rooms, the lobby included", rooms::size);
+        Metrics.gauge("chat_outbound_queued_frames", "Frames waiting in all outbound queues",
+                () -> clients.values().stream().mapToInt(ChatConnection::queuedFrames).sum());
+        Metrics.gauge("chat_outbound_queue_max", "Longest outbound queue",
+                () -> clients.values().stream().mapToInt(ChatConnection::queuedFrames).max().orElse(0));
+        Metrics.counter("chat_lines_sent_total", "Lines written to clients", SocketWrites::messageCount);
+        Metrics.counter("chat_socket_writes_total", "Write calls on client sockets", SocketWrites::writeCount);
+        Metrics.counter("chat_bytes_sent_total", "Bytes written to clients", SocketWrites::byteCount);
+        Metrics.counter("chat_bytes_received_total", "Bytes read from clients", SocketWrites::byteReadCount);
+        Metrics.counter("chat_outbound_dropped_total", "Lines dropped under drop-oldest", OutboundQueue::droppedCount);
+        Metrics.counter("chat_slow_clients_disconnected_total", "Clients disconnected for not reading", OutboundQueue::disconnectedCount);
+        Metrics.counter("chat_outbound_backpressure_total", "Sends that waited for a full queue", OutboundQueue::backpressuredCount);
+        Metrics.counter("chat_log_dropped_total", "Server log lines dropped", serverLog::droppedCount);
+        if (timers != null) Metrics.gauge("chat_timer_pending", "Timeouts waiting on the timer wheel", timers::pendingCount);
+        try {
+            Metrics.start();
+        } catch (IOException e) {
+            log("Metrics error: " + e.getMessage());
+        }
+    }
+
+    // -Dchat.engine=nio (default) runs on NioServer's event loops,
+    // -Dchat.engine=thread keeps the original thread-per-client handler and
+    // -Dchat.engine=virtual runs that same handler on virtual threads.
+    private void startServer() {
+        String engine = System.getProperty("chat.engine", "nio");
+        if (engine.equals("nio")) {
+            if (OutboundQueue.POLICY == OutboundQueue.Policy.BACKPRESSURE) {
+                log("Server error: chat.slowConsumer=backpressure would block the event loops, use chat.engine=thread or virtual");
+                return;
+            }
+            int loops = Integer.getInteger("chat.eventLoops", Runtime.getRuntime().availableProcessors());
+            try {
+                nioServer = new NioServer(port, loops, this);
+                nioServer.start();
+                log("Server started on port " + port + " (nio, " + nioServer.getLoopCount() + " event loops)");
+            } catch (IOException e) {
+                log("Server error: " + e.getMessage());
+            }
+            return;
+        }
+
+        boolean virtual = engine.equals("virtual");
+        if (virtual && !ServerThreads.virtualThreadsAvailable()) {
+            log("Virtual threads need Java 21, using platform threads");
+        }
+        executor = ServerThreads.newExecutor(virtual, "chat-client");
+        executor.execute(() -> {
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));
+                log("Server started on port " + port + " (" + engine + ")");
+
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (admit()) executor.execute(new ClientHandler(channel));
+                    else SocketWrites.refuse(channel, "SERVER_BUSY");
+                }
+            } catch (IOException e) {
+                log("Server error: " + e.getMessage());
+            }
+        });
+    }
+
+    private void log(String message) {
+        serverLog.log(message);
+    }
+
+    public boolean admit() {
+        if (open.incrementAndGet() <= MAX_CONNECTIONS || MAX_CONNECTIONS <= 0) return true;
+        open.decrementAndGet();
+        rejected.increment();
+        return false;
+    }
+
+    public void connected(ChatConnection client) {
+        connections.increment();
+        if (PING_NANOS > 0) {
+            Heartbeat heartbeat = new Heartbeat(client);
+            heartbeats.put(client, heartbeat);
+            heartbeat.schedule(PING_NANOS);
+        }
+        client.send("USERNAME_REQUEST");
+    }
+
+    public void lineReceived(ChatConnection client, String line) {
+        String username = client.getUsername();
+        if (username == null) {
+            if (!loggingIn.add(client)) return;
+            loginLines.increment();
+            // Names travel in tab separated presence and cluster lines.
+            if (line.isBlank() || line.indexOf('\t') >= 0 || clients.containsKey(line)) {
+                rejectLogin(client);
+            } else if (cluster == null) {
+                completeLogin(client, line);
+            } else {
+                // The name must also be free on every other node.
+                cluster.reserve(line).thenAccept(ok -> {
+                    if (ok) completeLogin(client, line);
+                    else rejectLogin(client);
+                });
+            }
+            return;
+        }
+
+        Budget budget = budgets.get(client);
+        if (budget != null) throttle(budget, budget.limit.chargeLine(line), throttledUser);
+
+        CodeBlock block = pendingCode.get(client);
+        if (block != null && block.text != null) {
+            if (!line.equals("/end")) {
+                block.add(line);
+                return;
+            }
+            pendingCode.remove(client);
+            byte[] code = block.text.toString().getBytes(StandardCharsets.UTF_8);
+            if (block.overflow || code.length > MAX_CODE_BYTES) {
+                client.send("Server: Code snippets are limited to " + MAX_CODE_BYTES + " bytes.");
+            } else {
+                ByteBuffer buf = Frame.acquire(code.length);
+                shareCode(client, block.target, buf.put(code).flip());
+            }
+            return;
+        }
+
+        if (line.equals("/pong")) {
+            Heartbeat heartbeat = heartbeats.get(client);
+            if (heartbeat != null) heartbeat.pongs = true;
+        } else if (line.startsWith("/to ")) {
+            privateLines.increment();
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                privateMessage(client, parts[1], parts[2]);
+            }
+        } else if (line.startsWith("/codebytes ")) {
+            codeBlocks.increment();
+            startCode(client, line.substring(11).trim());
+        } else if (line.startsWith("/code ")) {
+            codeBlocks.increment();
+            String target = line.substring(6).trim();
+            if (!target.isEmpty()) pendingCode.put(client, new CodeBlock(target, true));
+        } else if (line.startsWith("/join ")) {
+            commandLines.increment();
+            joinRoom(client, line.substring(6).trim());
+        } else if (line.equals("/leave")) {
+            commandLines.increment();
+            joinRoom(client, Room.LOBBY);
+        } else if (line.equals("/rooms")) {
+            commandLines.increment();
+            listRooms(client);
+        } else if (line.equals("/users")) {
+            commandLines.increment();
+            presence.resend(client);
+        } else {
+            roomLines.increment();
+            Room room = client.getRoom();
+            if (budget != null) throttle(budget, room.getLimit().chargeLine(line), throttledRoom);
+            broadcast(room, username, line);
+        }
+    }
+
+    public void payloadReceived(ChatConnection client, ByteBuffer payload) {
+        CodeBlock block = pendingCode.remove(client);
+        if (block == null) {
+            Frame.recycle(payload);
+            return;
+        }
+        Budget budget = budgets.get(client);
+        if (budget != null) throttle(budget, budget.limit.chargeBytes(payload.remaining()), throttledUser);
+        shareCode(client, block.target, payload);
+    }
+
+    // "/codebytes <bytes> <target>" is followed by exactly that many bytes
+    // of code, which arrive as one payload. Older clients send "/code
+    // <target>", the code line by line and "/end"; those lines are collected
+    // by lineReceived, so either way the snippet goes out once, as a whole.
+    private void startCode(ChatConnection client, String args) {
+        int space = args.indexOf(' ');
+        int length = -1;
+        if (space > 0) {
+            try {
+                length = Integer.parseInt(args.substring(0, space));
+            } catch (NumberFormatException ignored) {}
+        }
+        String target = space > 0 ? args.substring(space + 1).trim() : "";
+        if (length < 0 || target.isEmpty()) {
+            client.send("Server: Usage: /codebytes <bytes> <target>");
+            return;
+        }
+        if (length > MAX_CODE_BYTES) {
+            // Its bytes cannot be read as lines, so the connection is done.
+            client.send("Server: Code snippets are limited to " + MAX_CODE_BYTES + " bytes.");
+            client.close();
+            return;
+        }
+        pendingCode.put(client, new CodeBlock(target, false));
+        client.expectPayload(length);
+    }
+
+    // Sends a snippet to the sender's room, or to one user and back to the
+    // sender, as a CODE line followed by the code:
+    //
+    //   CODE  from  to (empty for the room)  line count
+    //
+    // The target is the sender's own name (or "Public") for the room.
+    // Takes ownership of code.
+    private void shareCode(ChatConnection client, String target, ByteBuffer code) {
+        try {
+            int lines = countLines(code);
+            if (lines == 0) return;
+            String sender = client.getUsername();
+            String text = cluster == null ? null : StandardCharsets.UTF_8.decode(code.duplicate()).toString();
+            if (target.equals(sender) || target.equals("Public")) {
+                Room room = client.getRoom();
+                Budget budget = budgets.get(client);
+                if (budget != null) throttle(budget, room.getLimit().charge(code.remaining()), throttledRoom);
+                if (cluster != null) cluster.forwardCode(room.getName(), sender, null, text);
+                deliverCode(room, sender, Frame.of(codeHeader(sender, null, lines), code));
+                return;
+            }
+            ChatConnection to = clients.get(target);
+            if (to != null || (cluster != null && cluster.forwardCode(null, sender, target, text))) {
+                Frame frame = Frame.of(codeHeader(sender, target, lines), code);
+                if (to != null) to.send(frame);
+                client.send(frame);
+                frame.release();
+                log("[Private] " + sender + " -> " + target + ": " + lines + " lines of code");
+            } else {
+                client.send("User " + target + " not found.");
+            }
+        } finally {
+            Frame.recycle(code);
+        }
+    }
+
+    private void deliverCode(Room room, String sender, Frame frame) {
+        log("[#" + room.getName() + "] " + sender + " shared code");
+        onRoomShard(room, () -> {
+            long start = System.nanoTime();
+            for (ChatConnection member : room.getMembers()) {
+                member.send(frame);
+            }
+            frame.release();
+            fanout.record(System.nanoTime() - start);
+        });
+    }
+
+    private static String codeHeader(String from, String to, int lines) {
+        return "CODE\t" + from + "\t" + (to == null ? "" : to) + "\t" + lines;
+    }
+
+    // Lines as a client's readLine will see them: ended by \n, \r\n or a
+    // lone \r, the last one possibly unterminated.
+    private static int countLines(ByteBuffer code) {
+        int lines = 0;
+        int end = code.limit();
+        for (int i = code.position(); i < end; i++) {
+            byte b = code.get(i);
+            if (b == '\n' || (b == '\r' && (i + 1 == end || code.get(i + 1) != '\n'))) lines++;
+        }
+        byte last = code.hasRemaining() ? code.get(end - 1) : (byte) '\n';
+        return last == '\n' || last == '\r' ? lines : lines + 1;
+    }
+
+    // May run on the cluster's thread once the name is confirmed, by when
+    // the client may be gone; locked against disconnected so it either
+    // sees the login whole or not at all.
+    private void completeLogin(ChatConnection client, String username) {
+        synchronized (client) {
+            if (!loggingIn.contains(client)) {
+                release(username);
+                return;
+            }
+            if (clients.putIfAbsent(username, client) != null) {
+                rejectLogin(client);
+                return;
+            }
+            client.setUsername(username);
+            loggingIn.remove(client);
+            if (RateLimit.ENABLED) budgets.put(client, new Budget(client));
+            if (cluster != null) cluster.joined(username);
+            client.setRoom(enter(Room.LOBBY, client));
+            presence.join(client);
+        }
+    }
+
+    // A name the cluster reserved for a login that did not happen, unless
+    // another client here logged in with it meanwhile.
+    private void release(String username) {
+        if (cluster != null && !clients.containsKey(username)) cluster.cancel(username);
+    }
+
+    private void rejectLogin(ChatConnection client) {
+        loggingIn.remove(client);
+        client.send("USERNAME_TAKEN");
+        client.close();
+    }
+
+    public void disconnected(ChatConnection client) {
+        open.decrementAndGet();
+        pendingCode.remove(client);
+        Heartbeat heartbeat = heartbeats.remove(client);
+        if (heartbeat != null && heartbeat.timeout != null) heartbeat.timeout.cancel();
+        synchronized (client) {
+            loggingIn.remove(client);
+            budgets.remove(client);
+            String username = client.getUsername();
+            if (username != null && clients.remove(username, client)) {
+                if (cluster != null) cluster.left(username);
+                Room room = client.getRoom();
+                if (room != null) leave(room, client);
+                presence.leave(client);
+            }
+        }
+    }
+
+    public void roomLine(String room, String sender, String message) {
+        Room r = rooms.get(room);
+        if (r != null) deliver(r, sender, message);
+    }
+
+    public void presence(String username, boolean online) {
+        presence.remote(username, online);
+    }
+
+    public void codeBlock(String room, String from, String to, String code) {
+        byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        Frame frame = Frame.of(codeHeader(from, to, countLines(buf)), buf);
+        if (room != null) {
+            Room r = rooms.get(room);
+            if (r != null) {
+                deliverCode(r, from, frame);
+                return;
+            }
+        } else {
+            ChatConnection target = clients.get(to);
+            if (target != null) target.send(frame);
+        }
+        frame.release();
+    }
+
+    public void privateLine(String from, String to, String message) {
+        ChatConnection target = clients.get(to);
+        if (target != null) target.send("[Private] " + from + ": " + message);
+    }
+
+    public void evicted(String username) {
+        ChatConnection client = clients.get(username);
+        if (client == null) return;
+        log("Dropping " + username + ", the name was taken on another node");
+        client.send("Server: Your username was taken on another server, please reconnect.");
+        client.close();
+    }
+
+    // Fans out to the room's members only. Under the nio engine this runs
+    // on the event loop the room hashes to, so a room's lines stay in
+    // order and busy rooms are spread across cores.
+    private void broadcast(Room room, String sender, String message) {
+        if (cluster != null) cluster.forwardRoom(room.getName(), sender, message);
+        deliver(room, sender, message);
+    }
+
+    private void deliver(Room room, String sender, String message) {
+        log("[#" + room.getName() + "] " + sender + ": " + message);
+        onRoomShard(room, () -> {
+            long start = System.nanoTime();
+            Frame frame = Frame.of(sender + ": " + message);
+            for (ChatConnection member : room.getMembers()) {
+                member.send(frame);
+            }
+            frame.release();
+            fanout.record(System.nanoTime() - start);
+        });
+    }
+
+    private void onRoomShard(Room room, Runnable task) {
+        if (nioServer != null) nioServer.execute(room.getName(), task);
+        else task.run();
+    }
+
+    private Room enter(String name, ChatConnection client) {
+        return rooms.compute(name, (k, room) -> {
+            if (room == null) room = new Room(k);
+            room.getMembers().add(client);
+            return room;
+        });
+    }
+
+    private void leave(Room room, ChatConnection client) {
+        rooms.computeIfPresent(room.getName(), (k, r) -> {
+            r.getMembers().remove(client);
+            return r.getMembers().isEmpty() && !k.equals(Room.LOBBY) ? null : r;
+        });
+        room.getMembers().remove(client);
+    }
+
+    // One room at a time: joining another room leaves the current one, and
+    // /leave goes back to the lobby.
+    private void joinRoom(ChatConnection client, String name) {
+        if (!Room.isValidName(name)) {
+            client.send("Room names are 1-32 letters, digits, - or _.");
+            return;
+        }
+        Room current = client.getRoom();
+        if (current != null && current.getName().equals(name)) return;
+        Room room = enter(name, client);
+        client.setRoom(room);
+        if (current != null) {
+            leave(current, client);
+            broadcast(current, "Server", client.getUsername() + " went to #" + name);
+        }
+        client.send("Server: You are now in #" + name);
+        broadcast(room, "Server", client.getUsername() + " entered #" + name);
+    }
+
+    private void listRooms(ChatConnection client) {
+        StringBuilder sb = new StringBuilder("Server: Rooms:");
+        for (Room room : rooms.values()) {
+            sb.append(" #").append(room.getName()).append(" (").append(room.getMembers().size()).append(")");
+        }
+        client.send(sb.toString());
+    }
+
+    private void privateMessage(ChatConnection from, String to, String message) {
+        ChatConnection target = clients.get(to);
+        if (target != null) {
+            target.send("[Private] " + from.getUsername() + ": " + message);
+            from.send("[To " + to + "]: " + message);
+            log("[Private] " + from.getUsername() + " -> " + to + ": " + message);
+        } else if (cluster != null && cluster.forwardPrivate(from.getUsername(), to, message)) {
+            from.send("[To " + to + "]: " + message);
+        } else {
+            from.send("User " + to + " not found.");
+        }
+    }
+
+    // Looks at one connection every chat.pingMillis, or that long after it
+    // was last heard from, on the timer wheel's thread; one pending
+    // timeout per connection and nothing at all on the read path.
+    //
+    // Clients that reply "/pong" to PING (and send one unasked once logged
+    // in, to say they can) are pinged when silent and evicted when they stop
+    // answering. Older clients are never pinged, but like everyone else are
+    // evicted when lines queue up for them and none get written, as happens
+    // to a half-open connection once its socket buffer is full. Either way
+    // the connection is closed and leaves as on a normal disconnect.
+    private final class Heartbeat implements Runnable {
+        private final ChatConnection client;
+        private volatile boolean pongs;
+        private volatile TimerWheel.Timeout timeout;
+        // Timer thread only: when the writer was last seen with lines queued
+        // and no write since, 0 when nothing is queued.
+        private long stuckSince;
+
+        Heartbeat(ChatConnection client) {
+            this.client = client;
+        }
+
+        void schedule(long nanos) {
+            timeout = timers.schedule(this, TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+
+        public void run() {
+            if (heartbeats.get(client) != this) return;
+            long now = System.nanoTime();
+            long idle = now - client.lastReadNanos();
+            if (pongs && idle >= IDLE_NANOS) {
+                evict(this, evictedIdle, "silent for " + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+                return;
+            }
+            if (client.queuedFrames() == 0) {
+                stuckSince = 0;
+            } else if (stuckSince == 0 || client.lastWriteNanos() - stuckSince > 0) {
+                stuckSince = now;
+            } else if (now - stuckSince >= STALL_NANOS) {
+                evict(this, evictedStalled, "not reading");
+                return;
+            }
+            // A full queue is left to the slow-consumer policy; a PING must
+            // never block the timer.
+            if (pongs && idle >= PING_NANOS && client.queuedFrames() < OutboundQueue.CAPACITY / 2) {
+                client.send("PING");
+                pingsSent.increment();
+            }
+            schedule(idle >= PING_NANOS ? PING_NANOS : PING_NANOS - idle);
+        }
+    }
+
+    private void evict(Heartbeat heartbeat, LongAdder reason, String why) {
+        if (!heartbeats.remove(heartbeat.client, heartbeat)) return;
+        reason.increment();
+        String username = heartbeat.client.getUsername();
+        log("Evicting " + (username == null ? "a connection" : username) + ", " + why);
+        heartbeat.client.abort();
+    }
+
+    // Rate limits are charged after the fact, for what has been read: a
+    // line over budget is still handled, and the connection is then not
+    // read from until the debt is paid back. That is one CAS per bucket
+    // per line; only a client over budget takes the lock below.
+    private final class Budget implements Runnable {
+        private final ChatConnection client;
+        private final RateLimit limit = RateLimit.forUser();
+        // Guarded by this.
+        private long resumeAt;
+        private boolean paused;
+
+        Budget(ChatConnection client) {
+            this.client = client;
+        }
+
+        // On the timer wheel, when a pause may be over.
+        public void run() {
+            long left;
+            synchronized (this) {
+                left = resumeAt - System.nanoTime();
+                if (left <= 0) paused = false;
+            }
+            if (left > 0) timers.schedule(this, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+            else client.resumeReads();
+        }
+    }
+
+    // Stops reading from the client for nanos, or leaves it paused for
+    // longer if it already is. Called while handling one of its lines.
+    private void throttle(Budget budget, long nanos, LongAdder counter) {
+        if (nanos <= 0) return;
+        synchronized (budget) {
+            long until = System.nanoTime() + nanos;
+            if (!budget.paused || until - budget.resumeAt > 0) budget.resumeAt = until;
+            if (budget.paused) return;
+            budget.paused = true;
+        }
+        counter.increment();
+        // Paused before the resume can be scheduled, so it cannot overtake.
+        budget.client.pauseReads();
+        timers.schedule(budget, TimeUnit.NANOSECONDS.toMillis(nanos) + 1);
+    }
+
+    // A snippet being received: who it is for and, from an older client,
+    // the lines so far.
+    private static final class CodeBlock {
+        final String target;
+        final StringBuilder text;
+        boolean overflow;
+
+        CodeBlock(String target, boolean lines) {
+            this.target = target;
+            this.text = lines ? new StringBuilder() : null;
+        }
+
+        void add(String line) {
+            if (overflow) return;
+            // chars, a lower bound on the encoded size, checked at /end
+            if (text.length() + line.length() >= MAX_CODE_BYTES) {
+                overflow = true;
+                text.setLength(0);
+                return;
+            }
+            text.append(line).append('\n');
+        }
+    }
+
+    class ClientHandler implements Runnable, ChatConnection {
+        private static final int MAX_GATHER = 64;
+        private static final int MAX_LINE_LENGTH = 1024 * 1024;
+        // Queued by close() so the writer drains what is ahead of it first.
+        private static final Frame END_OF_STREAM = Frame.of("");
+
+        private SocketChannel channel;
+        private InputStream in;
+        // Reader thread only
+        private byte[] lineBuf = new byte[256];
+        private ByteBuffer payload;
+        // A dropped end of stream still has to end the connection.
+        private final OutboundQueue<Frame> outbound = new OutboundQueue<>(frame -> {
+            if (frame == END_OF_STREAM) abort();
+            else frame.release();
+        });
+        private volatile String username;
+        private volatile Room room;
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastWrite = lastRead;
+        private volatile boolean readsPaused;
+        private volatile Thread reader;
+
+        public ClientHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public String getUsername() { return username; }
+        public void setUsername(String username) { this.username = username; }
+        public Room getRoom() { return room; }
+        public void setRoom(Room room) { this.room = room; }
+        public int queuedFrames() { return outbound.size(); }
+        public long lastReadNanos() { return lastRead; }
+        public long lastWriteNanos() { return lastWrite; }
+
+        public void expectPayload(int length) {
+            payload = Frame.acquire(length);
+            payload.limit(length);
+        }
+
+        public void send(Frame frame) {
+            if (!outbound.offer(frame.retain())) {
+                frame.release();
+                log("Disconnecting slow client " + username);
+                abort();
+            }
+        }
+
+        public void close() {
+            if (!outbound.offer(END_OF_STREAM)) abort();
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            LockSupport.unpark(reader);
+        }
+
+        public void pauseReads() {
+            readsPaused = true;
+        }
+
+        public void resumeReads() {
+            readsPaused = false;
+            LockSupport.unpark(reader);
+        }
+
+        // Drains the outbound queue on its own thread so a stalled socket
+        // only ever blocks this client's writer. Whatever is queued goes out
+        // in one gathering write over the shared frame buffers; a small batch
+        // waits up to chat.flushMillis for company first.
+        private void writeLoop() {
+            Frame[] frames = new Frame[MAX_GATHER];
+            ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+            try {
+                boolean open = true;
+                while (open) {
+                    int n = 0;
+                    long remaining = 0;
+                    Frame frame = outbound.take();
+                    long deadline = System.nanoTime() + SocketWrites.FLUSH_NANOS;
+                    while (frame != null) {
+                        if (frame == END_OF_STREAM) {
+                            open = false;
+                            break;
+                        }
+                        frames[n] = frame;
+                        batch[n++] = frame.duplicate();
+                        remaining += frame.length();
+                        if (n == MAX_GATHER || remaining >= SocketWrites.FLUSH_BYTES) break;
+                        frame = outbound.poll();
+                        if (frame == null) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) frame = outbound.poll(wait);
+                        }
+                    }
+                    while (remaining > 0) {
+                        long written = channel.write(batch, 0, n);
+                        remaining -= written;
+                        if (written > 0) lastWrite = System.nanoTime();
+                        SocketWrites.recordWrite(remaining == 0 ? n : 0, written);
+                    }
+                    for (int i = 0; i < n; i++) {
+                        frames[i].release();
+                        frames[i] = null;
+                        batch[i] = null;
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                for (Frame frame : frames) {
+                    if (frame != null) frame.release();
+                }
+                outbound.clear();
+                abort();
+            }
+        }
+
+        public void run() {
+            reader = Thread.currentThread();
+            try {
+                SocketWrites.configure(channel);
+                in = new BufferedInputStream(new FilterInputStream(channel.socket().getInputStream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            SocketWrites.recordRead(n);
+                            lastRead = System.nanoTime();
+                        }
+                        return n;
+                    }
+                });
+                executor.execute(this::writeLoop);
+
+                connected(this);
+                String line;
+                while ((line = readLine()) != null) {
+                    lineReceived(this, line);
+                    if (payload != null) readPayload();
+                    while (readsPaused && channel.isOpen()) LockSupport.park(this);
+                }
+            } catch (IOException e) {
+                if (username != null) log("Connection lost with " + username);
+            } finally {
+                if (payload != null) Frame.recycle(payload);
+                disconnected(this);
+                close();
+            }
+        }
+
+        // UTF-8 lines ended by \n or \r\n, the same as NioServer reads them;
+        // a byte stream rather than a Reader so payloads can follow a line.
+        private String readLine() throws IOException {
+            int len = 0;
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (len == MAX_LINE_LENGTH) throw new IOException("Line too long");
+                if (len == lineBuf.length) lineBuf = Arrays.copyOf(lineBuf, Math.min(len * 2, MAX_LINE_LENGTH));
+                lineBuf[len++] = (byte) b;
+            }
+            if (b < 0 && len == 0) return null;
+            if (len > 0 && lineBuf[len - 1] == '\r') len--;
+            String line = new String(lineBuf, 0, len, StandardCharsets.UTF_8);
+            if (lineBuf.length > 4096) lineBuf = new byte[256];
+            return line;
+        }
+
+        private void readPayload() throws IOException {
+            byte[] chunk = new byte[Math.min(payload.remaining(), 8192)];
+            while (payload.hasRemaining()) {
+                int n = in.read(chunk, 0, Math.min(chunk.length, payload.remaining()));
+                if (n < 0) throw new EOFException();
+                payload.put(chunk, 0, n);
+            }
+            ByteBuffer done = payload;
+            payload = null;
+            payloadReceived(this, done.flip());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        ChatServerCore server = new ChatServerCore(port);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            stopped.countDown();
+        }, "chat-shutdown"));
+        server.start();
+        // Virtual threads are daemons, so hold the JVM open ourselves.
+        stopped.await();
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Links several server processes into one chat. Every node lists every
+// node, itself included, in the same order:
+//
+//   -Dchat.cluster=host1:7001,host2:7001,host3:7001
+//   -Dchat.cluster.self=host2:7001
+//
+// Each node dials every other node and accepts their links in turn, so
+// there are two TCP connections per pair, one per direction. Lines on a
+// link are tab separated:
+//
+//   HELLO    node
+//   RESERVE  id user         ask the name's owner to reserve it
+//   RESERVED id 1|0          owner's answer, sent back over its own link
+//   RELEASE  user
+//   JOIN     user            user is now on the sending node
+//   LEAVE    user
+//   ROOM     room sender message
+//   PRIVATE  from to message
+//   CODE     room from to code   room or to empty; code with \\, \n and \r
+//                                escaped, so it stays on one line
+//
+// Every username has one owner node (by hash), the only one that decides
+// whether the name is free, so duplicates are rejected cluster-wide. A
+// login whose owner cannot be reached is refused. When a node goes away its
+// reservations and directory entries are dropped.
+public class Cluster {
+    private static final long RESERVE_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int LINK_QUEUE = 64 * 1024;
+
+    private final String self;
+    private final List<String> nodes;
+    private final ClusterListener listener;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    // Names this node owns: user -> node holding it
+    private final Map<String, String> reservations = new ConcurrentHashMap<>();
+    // Users on other nodes: user -> node
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    // Users logged in here
+    private final Set<String> local = ConcurrentHashMap.newKeySet();
+    private final Map<Long, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private ServerSocket server;
+    private volatile boolean running = true;
+
+    public Cluster(String self, List<String> nodes, ClusterListener listener) {
+        if (!nodes.contains(self)) throw new IllegalArgumentException(self + " is not in the cluster list " + nodes);
+        this.self = self;
+        this.nodes = List.copyOf(nodes);
+        this.listener = listener;
+        for (String node : nodes) {
+            if (!node.equals(self)) peers.put(node, new Peer(node));
+        }
+    }
+
+    // From -Dchat.cluster / -Dchat.cluster.self, or null if not clustered.
+    public static Cluster fromProperties(ClusterListener listener) {
+        String list = System.getProperty("chat.cluster");
+        if (list == null || list.isBlank()) return null;
+        List<String> nodes = Arrays.asList(list.trim().split("\\s*,\\s*"));
+        return new Cluster(System.getProperty("chat.cluster.self", nodes.get(0)), nodes, listener);
+    }
+
+    public String getSelf() { return self; }
+    public int size() { return nodes.size(); }
+
+    public void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port(self)));
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (Peer peer : peers.values()) {
+            daemon(peer::run, "cluster-link-" + peer.node).start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+        for (Peer peer : peers.values()) peer.disconnect();
+    }
+
+    private String owner(String username) {
+        return nodes.get(Math.floorMod(username.hashCode(), nodes.size()));
+    }
+
+    // Completes with true once the name is ours; false if it is taken or
+    // its owner could not be asked.
+    public CompletableFuture<Boolean> reserve(String username) {
+        String owner = owner(username);
+        if (owner.equals(self)) {
+            return CompletableFuture.completedFuture(reservations.putIfAbsent(username, self) == null);
+        }
+        long id = nextId.incrementAndGet();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pending.put(id, result);
+        if (!peers.get(owner).send("RESERVE\t" + id + "\t" + username)) result.complete(false);
+        // A grant may still be on its way after a timeout; the RELEASE
+        // follows the RESERVE on the same connection, so it undoes it. After
+        // a refusal it is a no-op, the name being held for another node.
+        return result.completeOnTimeout(false, RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((ok, e) -> {
+                    pending.remove(id);
+                    if (!ok && !local.contains(username)) cancel(username);
+                });
+    }
+
+    // The reserved name is now logged in here.
+    public void joined(String username) {
+        local.add(username);
+        sendAll("JOIN\t" + username);
+    }
+
+    public void left(String username) {
+        if (!local.remove(username)) return;
+        sendAll("LEAVE\t" + username);
+        String owner = owner(username);
+        if (owner.equals(self)) reservations.remove(username, self);
+        else peers.get(owner).send("RELEASE\t" + username);
+    }
+
+    // Gives a name back that was reserved but never logged in: the client
+    // left or lost a race here while the owner was asked.
+    public void cancel(String username) {
+        String owner = owner(username);
+        if (owner.equals(self)) reservations.remove(username, self);
+        else peers.get(owner).send("RELEASE\t" + username);
+    }
+
+    public void forwardRoom(String room, String sender, String message) {
+        sendAll("ROOM\t" + room + "\t" + sender + "\t" + message);
+    }
+
+    // False if to is not logged in anywhere else.
+    public boolean forwardPrivate(String from, String to, String message) {
+        String node = directory.get(to);
+        if (node == null) return false;
+        return peers.get(node).send("PRIVATE\t" + from + "\t" + to + "\t" + message);
+    }
+
+    // For a room when to is null, otherwise false if to is not logged in
+    // anywhere else.
+    public boolean forwardCode(String room, String from, String to, String code) {
+        String line = "CODE\t" + (room == null ? "" : room) + "\t" + from + "\t" + (to == null ? "" : to) + "\t" + escape(code);
+        if (to == null) {
+            sendAll(line);
+            return true;
+        }
+        String node = directory.get(to);
+        return node != null && peers.get(node).send(line);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void sendAll(String line) {
+        for (Peer peer : peers.values()) peer.send(line);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                daemon(() -> readLink(socket), "cluster-in").start();
+            } catch (IOException e) {
+                if (!running) return;
+            }
+        }
+    }
+
+    // Everything a node sends arrives on the link it dialled to us.
+    private void readLink(Socket socket) {
+        String node = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String hello = in.readLine();
+            if (hello == null || !hello.startsWith("HELLO\t")) return;
+            node = hello.substring(6);
+            if (!peers.containsKey(node)) return;
+            String line;
+            while ((line = in.readLine()) != null) {
+                handle(node, line);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try { socket.close(); } catch (IOException ignored) {}
+            if (node != null) nodeDown(node);
+        }
+    }
+
+    private void handle(String node, String line) {
+        String[] f = line.split("\t", 4);
+        switch (f[0]) {
+            case "RESERVE" -> {
+                boolean ok = reservations.putIfAbsent(f[2], node) == null || node.equals(reservations.get(f[2]));
+                peers.get(node).send("RESERVED\t" + f[1] + "\t" + (ok ? 1 : 0));
+            }
+            case "RESERVED" -> {
+                CompletableFuture<Boolean> result = pending.get(Long.parseLong(f[1]));
+                if (result != null) result.complete(f[2].equals("1"));
+            }
+            case "RELEASE" -> reservations.remove(f[1], node);
+            case "JOIN" -> {
+                if (directory.put(f[1], node) == null) listener.presence(f[1], true);
+            }
+            case "LEAVE" -> {
+                if (directory.remove(f[1], node)) listener.presence(f[1], false);
+            }
+            case "ROOM" -> listener.roomLine(f[1], f[2], f[3]);
+            case "PRIVATE" -> listener.privateLine(f[1], f[2], f[3]);
+            case "CODE" -> {
+                String[] c = line.split("\t", 5);
+                listener.codeBlock(c[1].isEmpty() ? null : c[1], c[2], c[3].isEmpty() ? null : c[3], unescape(c[4]));
+            }
+        }
+    }
+
+    private void nodeDown(String node) {
+        reservations.values().removeIf(node::equals);
+        directory.entrySet().removeIf(e -> {
+            if (!e.getValue().equals(node)) return false;
+            listener.presence(e.getKey(), false);
+            return true;
+        });
+    }
+
+    private static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // Our side of the link to one other node: a bounded queue drained by a
+    // single writer that flushes once the queue runs dry, so a burst of
+    // lines goes out in a few large writes.
+    private class Peer {
+        private final String node;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(LINK_QUEUE);
+        private volatile Socket socket;
+
+        Peer(String node) {
+            this.node = node;
+        }
+
+        // Lines for a node that is down are dropped.
+        boolean send(String line) {
+            return socket != null && queue.offer(line);
+        }
+
+        void disconnect() {
+            Socket s = socket;
+            socket = null;
+            if (s != null) {
+                try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        void run() {
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(node.substring(0, node.lastIndexOf(':')), port(node)));
+                    s.setTcpNoDelay(true);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+                    out.write("HELLO\t" + self + "\n");
+                    queue.clear();
+                    socket = s;
+                    resync();
+                    while (running) {
+                        String line = queue.take();
+                        do {
+                            out.write(line);
+                            out.write('\n');
+                        } while ((line = queue.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // A (re)connected node learns who is here, and names it owns are
+        // claimed again; any that went to someone else meanwhile are lost.
+        private void resync() {
+            for (String user : local) {
+                send("JOIN\t" + user);
+                if (!owner(user).equals(node)) continue;
+                long id = nextId.incrementAndGet();
+                CompletableFuture<Boolean> result = new CompletableFuture<>();
+                pending.put(id, result);
+                result.completeOnTimeout(true, RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .whenComplete((ok, e) -> {
+                            pending.remove(id);
+                            if (!ok && local.remove(user)) listener.evicted(user);
+                        });
+                send("RESERVE\t" + id + "\t" + user);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Aggregate delivery rate of a cluster as nodes are added. For each node
+// count, starts that many server processes on this machine, spreads the
+// clients evenly over them and has every client send lines to the lobby,
+// so each line is delivered on every node.
+//
+//   java ClusterBench <clients> <linesPerClient> [nodes...]
+//   java ClusterBench 200 200 1 2 4
+public class ClusterBench {
+    private static final int CHAT_PORT = 15000;
+    private static final int CLUSTER_PORT = 17000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int[] nodeCounts = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1, 2, 4};
+        for (int nodes : nodeCounts) {
+            run(nodes, clients, lines);
+        }
+    }
+
+    private static void run(int nodes, int clients, int lines) throws Exception {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) members.add("localhost:" + (CLUSTER_PORT + i));
+        List<Process> servers = new ArrayList<>();
+        ExecutorService readers = Executors.newCachedThreadPool();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                List<String> command = new ArrayList<>(List.of(
+                        javaBin(), "-cp", System.getProperty("java.class.path"),
+                        // Room for the whole burst, so no reader is dropped as slow.
+                        "-Dchat.outboundCapacity=" + Math.max(1024, clients * lines),
+                        // Every client bursts at once, into one room.
+                        "-Dchat.rateLimit=false",
+                        "-Dchat.cluster.self=" + members.get(i), "ChatServerCore", String.valueOf(CHAT_PORT + i)));
+                if (nodes > 1) command.add(4, "-Dchat.cluster=" + String.join(",", members));
+                servers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            for (int i = 0; i < nodes; i++) awaitPort(CHAT_PORT + i);
+            // Let every node dial every other one.
+            if (nodes > 1) Thread.sleep(2000);
+
+            long expected = (long) clients * clients * lines;
+            LongAdder delivered = new LongAdder();
+            CountDownLatch done = new CountDownLatch(clients);
+            List<PrintWriter> outs = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Socket socket = new Socket("localhost", CHAT_PORT + c % nodes);
+                sockets.add(socket);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                in.readLine();
+                out.println("bench" + c);
+                outs.add(out);
+                readers.execute(() -> {
+                    long seen = 0;
+                    try {
+                        String line;
+                        while (seen < (long) clients * lines && (line = in.readLine()) != null) {
+                            if (line.startsWith("bench") && line.contains(": msg ")) {
+                                seen++;
+                                delivered.increment();
+                            }
+                        }
+                    } catch (IOException ignored) {}
+                    done.countDown();
+                });
+            }
+            // Logins (and their presence notices) settle before timing.
+            Thread.sleep(1000);
+
+            long start = System.nanoTime();
+            for (int l = 0; l < lines; l++) {
+                for (PrintWriter out : outs) out.println("msg " + l);
+            }
+            boolean complete = done.await(120, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("nodes=%d clients=%d deliveries=%d/%d %.2fs %.0f deliveries/s%s%n",
+                    nodes, clients, delivered.sum(), expected, seconds, delivered.sum() / seconds,
+                    complete ? "" : " (timed out)");
+        } finally {
+            for (Socket s : sockets) s.close();
+            readers.shutdownNow();
+            for (Process p : servers) p.destroy();
+            for (Process p : servers) p.waitFor();
+        }
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 300; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server on port " + port + " did not start");
+    }
+
+    private static String javaBin() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+}
@@ -0,0 +1,12 @@
+// What a Cluster hands back to the local server: traffic forwarded by other
+// nodes, to be delivered to this node's own clients only.
+public interface ClusterListener {
+    void roomLine(String room, String sender, String message);
+    // username logged in or out of another node.
+    void presence(String username, boolean online);
+    void privateLine(String from, String to, String message);
+    // A code snippet for room, or for user to when room is null.
+    void codeBlock(String room, String from, String to, String code);
+    // A local user whose name turned out to be taken elsewhere.
+    void evicted(String username);
+}
@@ -0,0 +1,82 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Write syscalls per delivered line and bytes per syscall for a busy room,
+// against an in-process ChatServerCore. Compare flush settings by running
+// it once per setting:
+//
+//   java -Dchat.flushMillis=0 CoalescingBench 100 200
+//   java -Dchat.flushMillis=1 -Dchat.flushBytes=16384 CoalescingBench 100 200
+public class CoalescingBench {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        if (System.getProperty("chat.serverLog") == null) System.setProperty("chat.serverLog", "/dev/null");
+        System.setProperty("chat.outboundCapacity", String.valueOf(Math.max(1024, clients * lines)));
+        if (System.getProperty("chat.rateLimit") == null) System.setProperty("chat.rateLimit", "false");
+
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        ChatServerCore server = new ChatServerCore(port);
+        server.start();
+        Thread.sleep(200);
+
+        ExecutorService readers = Executors.newCachedThreadPool();
+        LongAdder delivered = new LongAdder();
+        CountDownLatch done = new CountDownLatch(clients);
+        List<Socket> sockets = new ArrayList<>();
+        List<PrintWriter> outs = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in.readLine();
+            out.println("bench" + c);
+            outs.add(out);
+            readers.execute(() -> {
+                long seen = 0;
+                try {
+                    String line;
+                    while (seen < (long) clients * lines && (line = in.readLine()) != null) {
+                        if (line.contains(": msg ")) {
+                            seen++;
+                            delivered.increment();
+                        }
+                    }
+                } catch (IOException ignored) {}
+                done.countDown();
+            });
+        }
+        Thread.sleep(500);
+
+        long messagesBefore = SocketWrites.messageCount();
+        long writesBefore = SocketWrites.writeCount();
+        long bytesBefore = SocketWrites.byteCount();
+        long start = System.nanoTime();
+        for (int l = 0; l < lines; l++) {
+            for (PrintWriter out : outs) out.println("msg " + l);
+        }
+        done.await(120, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long messages = SocketWrites.messageCount() - messagesBefore;
+        long writes = SocketWrites.writeCount() - writesBefore;
+        long bytes = SocketWrites.byteCount() - bytesBefore;
+
+        System.out.printf("flushMillis=%s flushBytes=%d clients=%d deliveries=%d %.0f/s%n",
+                System.getProperty("chat.flushMillis", "1"), SocketWrites.FLUSH_BYTES, clients,
+                delivered.sum(), delivered.sum() / seconds);
+        System.out.printf("writes/line=%.4f bytes/write=%.0f%n",
+                (double) writes / Math.max(1, messages), (double) bytes / Math.max(1, writes));
+
+        for (Socket s : sockets) s.close();
+        readers.shutdownNow();
+        server.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,13 @@
+import java.nio.ByteBuffer;
+
+public interface ConnectionListener {
+    // Asked by the accept loop for every new connection; one refused is
+    // told SERVER_BUSY and closed. Admitted ones end with disconnected.
+    boolean admit();
+    void connected(ChatConnection connection);
+    void lineReceived(ChatConnection connection, String line);
+    // The bytes asked for with ChatConnection.expectPayload, in a buffer
+    // from Frame.acquire that the listener now owns.
+    void payloadReceived(ChatConnection connection, ByteBuffer payload);
+    void disconnected(ChatConnection connection);
+}
@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One encoded protocol line, shared by every recipient. Connections write
+// duplicates of the same direct buffer, so a broadcast is encoded once no
+// matter how many clients receive it.
+//
+// Frames are reference counted: the creator holds one reference and every
+// queued send holds another. When the last one is released the buffer goes
+// back to a small size-class pool.
+public final class Frame {
+    private static final int MIN_POOLED = 256;
+    private static final int MAX_POOLED = 64 * 1024;
+    private static final int POOL_LIMIT = 256;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED / MIN_POOLED) + 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Queue<ByteBuffer>[] pools = new Queue[SIZE_CLASSES];
+    private static final AtomicInteger[] pooled = new AtomicInteger[SIZE_CLASSES];
+    static {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private Frame(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public static Frame of(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = acquire(bytes.length);
+        buf.put(bytes).flip();
+        return new Frame(buf);
+    }
+
+    // A header line followed by the lines in body, from its position to its
+    // limit; body is copied and left as it was. The last line gets a
+    // newline if it has none.
+    public static Frame of(String header, ByteBuffer body) {
+        byte[] bytes = (header + "\n").getBytes(StandardCharsets.UTF_8);
+        boolean terminated = body.hasRemaining() && body.get(body.limit() - 1) == '\n';
+        ByteBuffer buf = acquire(bytes.length + body.remaining() + 1);
+        buf.put(bytes).put(body.duplicate());
+        if (!terminated) buf.put((byte) '\n');
+        buf.flip();
+        return new Frame(buf);
+    }
+
+    // A private read cursor over the shared bytes; no copy is made.
+    public ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    public int length() {
+        return buffer.limit();
+    }
+
+    public Frame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) recycle(buffer);
+    }
+
+    // A cleared buffer from the pool with room for at least size bytes, for
+    // assembling something before it becomes a frame. Hand it back with
+    // recycle.
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED) return ByteBuffer.allocateDirect(size);
+        int cls = sizeClass(size);
+        ByteBuffer buf = pools[cls].poll();
+        if (buf == null) return ByteBuffer.allocateDirect(MIN_POOLED << cls);
+        pooled[cls].decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    public static void recycle(ByteBuffer buf) {
+        if (buf.capacity() > MAX_POOLED) return;
+        int cls = sizeClass(buf.capacity());
+        if (pooled[cls].incrementAndGet() > POOL_LIMIT) {
+            pooled[cls].decrementAndGet();
+            return;
+        }
+        pools[cls].add(buf);
+    }
+
+    private static int sizeClass(int size) {
+        return size <= MIN_POOLED ? 0 : 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_POOLED);
+    }
+}
@@ -0,0 +1,65 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Per-recipient encoding vs one shared Frame fanned out to every recipient.
+// Reports ns and bytes allocated per broadcast.
+//
+//   java FrameBench [recipients] [messageLength] [iterations]
+public class FrameBench {
+    // Stands in for a socket: consumes the buffer without copying it.
+    static class NullChannel implements WritableByteChannel {
+        long bytes;
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        public boolean isOpen() { return true; }
+        public void close() {}
+    }
+
+    public static void main(String[] args) {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        String message = "x".repeat(length);
+        NullChannel[] sinks = new NullChannel[recipients];
+        for (int i = 0; i < recipients; i++) sinks[i] = new NullChannel();
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("per-recipient", report, iterations, recipients, () -> {
+                for (NullChannel sink : sinks) {
+                    sink.write(ByteBuffer.wrap(("alice: " + message + "\n").getBytes(StandardCharsets.UTF_8)));
+                }
+            });
+            run("shared-frame", report, iterations, recipients, () -> {
+                Frame frame = Frame.of("alice: " + message);
+                for (NullChannel sink : sinks) {
+                    sink.write(frame.duplicate());
+                }
+                frame.release();
+            });
+        }
+    }
+
+    private static void run(String name, boolean report, int iterations, int recipients, Runnable broadcast) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long allocBefore = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) broadcast.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(tid) - allocBefore;
+        if (report) {
+            System.out.printf("%-14s recipients=%d  %,d ns/broadcast  %,d B allocated/broadcast%n",
+                    name, recipients, elapsed / iterations, allocated / iterations);
+        }
+    }
+}
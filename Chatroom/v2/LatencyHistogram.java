@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size, thread-safe histogram of nanosecond values in the style of
+// HdrHistogram: 64 linear sub-buckets per power of two, so any recorded
+// value is reported within about 1.6%, from 1 ns up to about 18 minutes.
+// Recording is two atomic adds and never allocates.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final long MAX = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX) + 1);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        nanos = Math.max(0, Math.min(nanos, MAX));
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.addAndGet(i, n);
+        }
+        sum.add(other.sum());
+    }
+
+    // Of the recorded values, exactly.
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        return total;
+    }
+
+    // The smallest recorded bucket value at or above fraction p of the
+    // samples, 0 if nothing was recorded.
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * p));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return value(i);
+        }
+        return MAX;
+    }
+
+    public long max() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) return value(i);
+        }
+        return 0;
+    }
+
+    // Values below 2 * SUB map to themselves; above that, the top
+    // SUB_BITS + 1 bits pick the bucket within the value's power of two.
+    private static int index(long v) {
+        if (v < 2 * SUB) return (int) v;
+        int shift = 64 - Long.numberOfLeadingZeros(v) - (SUB_BITS + 1);
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    private static long value(int index) {
+        if (index < 2 * SUB) return index;
+        int shift = index / SUB - 1;
+        return (long) (index - shift * SUB) << shift;
+    }
+}
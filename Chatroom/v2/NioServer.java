@@ -0,0 +1,393 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Selector based server engine: a fixed set of event loops, each owning a
+// Selector and the connections assigned to it. Loop 0 also accepts.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int MAX_GATHER = 64;
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final int port;
+    private final ConnectionListener listener;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(int port, int loopCount, ConnectionListener listener) {
+        this.port = port;
+        this.listener = listener;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "chat-loop-" + i);
+            loops[i].thread = t;
+            t.start();
+        }
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                stop();
+            }
+        });
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    // Runs task on the event loop key hashes to. Work with the same key
+    // (one room's fan-out) stays in order on one thread, and different keys
+    // spread over all the loops.
+    public void execute(Object key, Runnable task) {
+        loops[Math.floorMod(key.hashCode(), loops.length)].execute(task);
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                if (!listener.admit()) {
+                    SocketWrites.refuse(channel, "SERVER_BUSY");
+                    continue;
+                }
+                channel.configureBlocking(false);
+                SocketWrites.configure(channel);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        } catch (IOException ignored) {
+            // Transient accept failures (e.g. EMFILE) must not kill loop 0.
+        }
+    }
+
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // Connections holding back a small write, oldest deadline first.
+        private final ArrayDeque<NioConnection> deferred = new ArrayDeque<>();
+        private volatile boolean running = true;
+        private Thread thread;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // Every deferral is FLUSH_NANOS long, so the queue is in deadline order.
+        private void flushDue() {
+            long now = System.nanoTime();
+            while (!deferred.isEmpty() && deferred.peek().flushDeadline - now <= 0) {
+                NioConnection connection = deferred.poll();
+                connection.deferredFlush = false;
+                connection.flush();
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            NioConnection connection = new NioConnection(this, channel);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try { channel.close(); } catch (IOException ignored) {}
+                listener.disconnected(connection);
+                return;
+            }
+            listener.connected(connection);
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    if (!tasks.isEmpty()) selector.selectNow();
+                    else if (deferred.isEmpty()) selector.select();
+                    else selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deferred.peek().flushDeadline - System.nanoTime())));
+                } catch (IOException e) {
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) connection.read(readBuffer);
+                    if (key.isValid() && key.isWritable()) connection.flush();
+                }
+                flushDue();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) connection.closeNow();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    class NioConnection implements ChatConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final OutboundQueue<Frame> writeQueue = new OutboundQueue<>(Frame::release);
+        // Frames taken off writeQueue but not fully written yet, loop thread only.
+        private final ArrayDeque<Frame> inFlight = new ArrayDeque<>(4);
+        private final ArrayDeque<ByteBuffer> inFlightBuffers = new ArrayDeque<>(4);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        // Loop thread only.
+        private boolean deferredFlush;
+        private long flushDeadline;
+        private SelectionKey key;
+        private byte[] lineBuf;
+        private int lineLen;
+        // Raw bytes being read after a line that asked for them.
+        private ByteBuffer payload;
+        // Set by pauseReads: OP_READ stays off, and whatever was read past
+        // the line that paused waits in backlog.
+        private boolean readsPaused;
+        private ByteBuffer backlog;
+        private volatile String username;
+        private volatile Room room;
+        private volatile boolean closed;
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastWrite = lastRead;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        public String getUsername() { return username; }
+        public void setUsername(String username) { this.username = username; }
+        public Room getRoom() { return room; }
+        public void setRoom(Room room) { this.room = room; }
+        public int queuedFrames() { return writeQueue.size(); }
+        public long lastReadNanos() { return lastRead; }
+        public long lastWriteNanos() { return lastWrite; }
+
+        public void expectPayload(int length) {
+            payload = Frame.acquire(length);
+            payload.limit(length);
+        }
+
+        public void send(Frame frame) {
+            if (closed) return;
+            if (!writeQueue.offer(frame.retain())) {
+                frame.release();
+                close();
+                return;
+            }
+            int length = frame.length();
+            long queued = queuedBytes.addAndGet(length);
+            if (queued >= SocketWrites.FLUSH_BYTES && queued - length < SocketWrites.FLUSH_BYTES) {
+                loop.execute(this::flush);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::scheduleFlush);
+            }
+        }
+
+        // Gives other lines up to FLUSH_NANOS to join this one in a single
+        // write, unless enough is queued already.
+        private void scheduleFlush() {
+            if (deferredFlush) return;
+            if (SocketWrites.FLUSH_NANOS == 0 || queuedBytes.get() >= SocketWrites.FLUSH_BYTES) {
+                flush();
+                return;
+            }
+            deferredFlush = true;
+            flushDeadline = System.nanoTime() + SocketWrites.FLUSH_NANOS;
+            loop.deferred.add(this);
+        }
+
+        public void close() {
+            if (closed) return;
+            closed = true;
+            loop.execute(() -> {
+                flush();
+                closeNow();
+            });
+        }
+
+        public void abort() {
+            closed = true;
+            loop.execute(this::closeNow);
+        }
+
+        public void pauseReads() {
+            readsPaused = true;
+        }
+
+        public void resumeReads() {
+            loop.execute(() -> {
+                if (!readsPaused || !channel.isOpen()) return;
+                readsPaused = false;
+                ByteBuffer pending = backlog;
+                backlog = null;
+                if (pending != null) consume(pending);
+                if (!readsPaused && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            });
+        }
+
+        private int readOps() {
+            return readsPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void read(ByteBuffer buf) {
+            buf.clear();
+            int n;
+            try {
+                n = channel.read(buf);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            SocketWrites.recordRead(n);
+            lastRead = System.nanoTime();
+            buf.flip();
+            consume(buf);
+        }
+
+        private void consume(ByteBuffer buf) {
+            while (buf.hasRemaining() && !closed && !readsPaused) {
+                if (payload != null) {
+                    int take = Math.min(buf.remaining(), payload.remaining());
+                    payload.put(payload.position(), buf, buf.position(), take);
+                    payload.position(payload.position() + take);
+                    buf.position(buf.position() + take);
+                    if (!payload.hasRemaining()) payloadDone();
+                    continue;
+                }
+                byte b = buf.get();
+                if (b == '\n') {
+                    int len = lineLen;
+                    if (len > 0 && lineBuf[len - 1] == '\r') len--;
+                    String line = len == 0 ? "" : new String(lineBuf, 0, len, StandardCharsets.UTF_8);
+                    lineLen = 0;
+                    listener.lineReceived(this, line);
+                    if (payload != null && !payload.hasRemaining()) payloadDone();
+                } else {
+                    if (lineLen == MAX_LINE_LENGTH) {
+                        closeNow();
+                        return;
+                    }
+                    if (lineBuf == null) {
+                        lineBuf = new byte[256];
+                    } else if (lineLen == lineBuf.length) {
+                        lineBuf = Arrays.copyOf(lineBuf, Math.min(lineBuf.length * 2, MAX_LINE_LENGTH));
+                    }
+                    lineBuf[lineLen++] = b;
+                }
+            }
+            if (readsPaused && buf.hasRemaining() && !closed) {
+                backlog = ByteBuffer.allocate(buf.remaining()).put(buf).flip();
+            }
+            if (readsPaused && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            // Idle connections should not pin a large partial-line buffer.
+            if (lineLen == 0 && lineBuf != null && lineBuf.length > 4096) lineBuf = null;
+        }
+
+        private void payloadDone() {
+            ByteBuffer done = payload;
+            payload = null;
+            listener.payloadReceived(this, done.flip());
+        }
+
+        // Gathering write of everything queued, up to MAX_GATHER frames per
+        // syscall, straight from the shared frame buffers.
+        private void flush() {
+            flushScheduled.set(false);
+            if (!channel.isOpen()) return;
+            try {
+                while (true) {
+                    Frame frame;
+                    while (inFlight.size() < MAX_GATHER && (frame = writeQueue.poll()) != null) {
+                        queuedBytes.addAndGet(-frame.length());
+                        inFlight.add(frame);
+                        inFlightBuffers.add(frame.duplicate());
+                    }
+                    if (inFlight.isEmpty()) {
+                        key.interestOps(readOps());
+                        return;
+                    }
+                    ByteBuffer[] batch = inFlightBuffers.toArray(loop.gather);
+                    long written = channel.write(batch, 0, inFlightBuffers.size());
+                    Arrays.fill(batch, null);
+                    if (written > 0) lastWrite = System.nanoTime();
+                    int completed = 0;
+                    while (!inFlightBuffers.isEmpty() && !inFlightBuffers.peek().hasRemaining()) {
+                        inFlightBuffers.poll();
+                        inFlight.poll().release();
+                        completed++;
+                    }
+                    SocketWrites.recordWrite(completed, written);
+                    if (!inFlight.isEmpty()) {
+                        key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            closed = true;
+            if (!channel.isOpen()) return;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            writeQueue.clear();
+            if (payload != null) Frame.recycle(payload);
+            payload = null;
+            backlog = null;
+            Frame frame;
+            while ((frame = inFlight.poll()) != null) frame.release();
+            inFlightBuffers.clear();
+            listener.disconnected(this);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Bounded per-client outbound queue. What happens when a client stops
+// reading is decided by the slow-consumer policy:
+//
+//   -Dchat.slowConsumer=disconnect|drop-oldest|backpressure  (disconnect)
+//   -Dchat.outboundCapacity=N                                 (1024)
+//   -Dchat.backpressureMillis=N                               (1000)
+//
+// Backpressure blocks the sending thread until there is room, and gives up
+// by disconnecting the slow client once the timeout runs out. That would
+// stall a whole event loop, so the nio engine refuses it.
+//
+// Anything dropped or cleared is handed to discard, which for frames
+// releases them.
+public class OutboundQueue<T> {
+    public enum Policy { DISCONNECT, DROP_OLDEST, BACKPRESSURE }
+
+    public static final Policy POLICY = Policy.valueOf(
+            System.getProperty("chat.slowConsumer", "disconnect").toUpperCase().replace('-', '_'));
+    public static final int CAPACITY = Integer.getInteger("chat.outboundCapacity", 1024);
+    private static final long BACKPRESSURE_MILLIS = Long.getLong("chat.backpressureMillis", 1000);
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder disconnected = new LongAdder();
+    private static final LongAdder backpressured = new LongAdder();
+
+    private final BlockingQueue<T> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Consumer<? super T> discard;
+
+    public OutboundQueue(Consumer<? super T> discard) {
+        this.discard = discard;
+    }
+
+    // Returns false when the client has to be disconnected.
+    public boolean offer(T item) {
+        if (queue.offer(item)) return true;
+        switch (POLICY) {
+            case DROP_OLDEST -> {
+                do {
+                    T oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.increment();
+                        discard.accept(oldest);
+                    }
+                } while (!queue.offer(item));
+                return true;
+            }
+            case BACKPRESSURE -> {
+                backpressured.increment();
+                try {
+                    if (queue.offer(item, BACKPRESSURE_MILLIS, TimeUnit.MILLISECONDS)) return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        disconnected.increment();
+        return false;
+    }
+
+    public T peek() { return queue.peek(); }
+    public T poll() { return queue.poll(); }
+    public T take() throws InterruptedException { return queue.take(); }
+    public T poll(long nanos) throws InterruptedException { return queue.poll(nanos, TimeUnit.NANOSECONDS); }
+    public boolean isEmpty() { return queue.isEmpty(); }
+    public int size() { return queue.size(); }
+
+    public void clear() {
+        T item;
+        while ((item = queue.poll()) != null) discard.accept(item);
+    }
+
+
+    public static long droppedCount() { return dropped.sum(); }
+    public static long disconnectedCount() { return disconnected.sum(); }
+    public static long backpressuredCount() { return backpressured.sum(); }
+}
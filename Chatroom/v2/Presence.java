@@ -0,0 +1,139 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Who is online, told to each client once as a snapshot when it logs in
+// and then only as changes. Joins and leaves are collected for
+// -Dchat.presenceMillis (100) and go out together as one versioned delta
+// line, so a burst of reconnects costs every client one line, not one per
+// reconnect. Fields are tab separated:
+//
+//   PRESENCE  S  version  name...        snapshot
+//   PRESENCE  D  from  to  +name|-name... delta from version from to to
+//
+// A client that sees a delta not starting at its version sends /users for
+// a new snapshot. The "joined"/"left" notices are coalesced the same way.
+// Users on other cluster nodes are tracked too, without a connection.
+//
+// A snapshot is of the users as of its version, not of changes still
+// waiting, so the next delta brings a new client up to date. Lines are
+// built under the lock and sent from the presence thread in that order,
+// so a slow client never holds up a login or logout.
+public class Presence {
+    private static final long FLUSH_MILLIS = Long.getLong("chat.presenceMillis", 100);
+    // More changes than this in one flush are announced as a count.
+    private static final int NOTICE_LIMIT = 10;
+
+    private final Set<String> users = new TreeSet<>();
+    // users as of version, which snapshots show.
+    private final Set<String> flushed = new TreeSet<>();
+    // name -> online, for changes not sent yet. A name that toggles twice
+    // between flushes is back where it was and drops out.
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private final Set<ChatConnection> subscribers = new LinkedHashSet<>();
+    private final Consumer<String> log;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-presence");
+        t.setDaemon(true);
+        return t;
+    });
+    private long version;
+    private boolean flushScheduled;
+
+    public Presence(Consumer<String> log) {
+        this.log = log;
+    }
+
+    public synchronized void join(ChatConnection client) {
+        online(client.getUsername());
+        subscribers.add(client);
+        sendSnapshot(client);
+    }
+
+    public synchronized void leave(ChatConnection client) {
+        subscribers.remove(client);
+        offline(client.getUsername());
+    }
+
+    // A user on another node.
+    public synchronized void remote(String username, boolean online) {
+        if (online) online(username);
+        else offline(username);
+    }
+
+    // A client that lost track asks for the whole list again.
+    public synchronized void resend(ChatConnection client) {
+        if (subscribers.contains(client)) sendSnapshot(client);
+    }
+
+    public synchronized void stop() {
+        timer.shutdownNow();
+    }
+
+    private void online(String username) {
+        if (users.add(username)) change(username, true);
+    }
+
+    private void offline(String username) {
+        if (users.remove(username)) change(username, false);
+    }
+
+    private void change(String username, boolean online) {
+        if (pending.remove(username) == null) pending.put(username, online);
+        if (!flushScheduled && !timer.isShutdown()) {
+            flushScheduled = true;
+            timer.schedule(this::flush, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendSnapshot(ChatConnection client) {
+        StringBuilder sb = new StringBuilder("PRESENCE\tS\t").append(version);
+        for (String user : flushed) sb.append('\t').append(user);
+        String snapshot = sb.toString();
+        deliver(() -> client.send(snapshot));
+    }
+
+    // Called under the lock: sends run on the presence thread in the order
+    // they were handed over.
+    private void deliver(Runnable sends) {
+        if (!timer.isShutdown()) timer.execute(sends);
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (pending.isEmpty()) return;
+        StringBuilder delta = new StringBuilder("PRESENCE\tD\t").append(version).append('\t').append(++version);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+            delta.append('\t').append(change.getValue() ? '+' : '-').append(change.getKey());
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        pending.clear();
+        flushed.addAll(joined);
+        flushed.removeAll(left);
+
+        List<String> notices = new ArrayList<>();
+        if (joined.size() + left.size() <= NOTICE_LIMIT) {
+            for (String user : joined) notices.add("Server: " + user + " joined.");
+            for (String user : left) notices.add("Server: " + user + " left.");
+        } else {
+            notices.add("Server: " + (left.isEmpty() ? joined.size() + " users joined."
+                    : joined.isEmpty() ? left.size() + " users left."
+                    : joined.size() + " users joined, " + left.size() + " left."));
+        }
+        List<Frame> frames = new ArrayList<>();
+        for (String notice : notices) {
+            log.accept(notice);
+            frames.add(Frame.of(notice));
+        }
+        frames.add(Frame.of(delta.toString()));
+        List<ChatConnection> recipients = new ArrayList<>(subscribers);
+        deliver(() -> {
+            for (ChatConnection client : recipients) {
+                for (Frame frame : frames) client.send(frame);
+            }
+            for (Frame frame : frames) frame.release();
+        });
+    }
+}
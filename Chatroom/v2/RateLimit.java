@@ -0,0 +1,67 @@
+// A budget of lines and bytes a second, as a pair of TokenBuckets: one per
+// logged-in user, and one per room shared by everyone talking in it.
+//
+//   -Dchat.rateLimit=BOOL       (true)
+//   -Dchat.userMessageRate=N    (50) lines a second from one user
+//   -Dchat.userByteRate=N       (1048576) bytes a second from one user
+//   -Dchat.roomMessageRate=N    (500) lines a second into one room
+//   -Dchat.roomByteRate=N       (8388608) bytes a second into one room
+//   -Dchat.rateBurstSeconds=N   (2) seconds' worth that may come at once
+//
+// A rate of 0 leaves that one unlimited. Bytes are counted as sent, in
+// UTF-8 with the newline.
+//
+// A client over budget is not refused anything; the server stops reading
+// its socket until the budget has recovered, which pushes TCP
+// backpressure back to the sender.
+public final class RateLimit {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.rateLimit", "true"));
+    private static final long BURST_SECONDS = Long.getLong("chat.rateBurstSeconds", 2);
+
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+
+    private RateLimit(long messagesPerSecond, long bytesPerSecond) {
+        messages = new TokenBucket(messagesPerSecond, messagesPerSecond * BURST_SECONDS);
+        bytes = new TokenBucket(bytesPerSecond, bytesPerSecond * BURST_SECONDS);
+    }
+
+    public static RateLimit forUser() {
+        return new RateLimit(Long.getLong("chat.userMessageRate", 50), Long.getLong("chat.userByteRate", 1 << 20));
+    }
+
+    public static RateLimit forRoom() {
+        return new RateLimit(Long.getLong("chat.roomMessageRate", 500), Long.getLong("chat.roomByteRate", 8 << 20));
+    }
+
+    // Charges one line of length bytes. Returns how many nanoseconds the
+    // sender should not be read from, 0 while within budget.
+    public long charge(long length) {
+        return Math.max(messages.take(1), bytes.take(length));
+    }
+
+    // Charges a line as it came off the wire.
+    public long chargeLine(String line) {
+        return charge(utf8Length(line) + 1);
+    }
+
+    // Bytes that were not a line of their own, such as a code snippet's.
+    public long chargeBytes(long length) {
+        return bytes.take(length);
+    }
+
+    private static long utf8Length(String s) {
+        long length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                // A surrogate pair is 4 bytes for 2 chars, anything else 3.
+                if (!Character.isSurrogate(c)) length += 2;
+                else length++;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A named channel and the connections currently in it. A line sent to a
+// room costs one send per member, not one per connected client.
+public class Room {
+    public static final String LOBBY = "lobby";
+
+    private final String name;
+    private final Set<ChatConnection> members = ConcurrentHashMap.newKeySet();
+    private final RateLimit limit = RateLimit.forRoom();
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+    public Set<ChatConnection> getMembers() { return members; }
+    public RateLimit getLimit() { return limit; }
+
+    public static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+}
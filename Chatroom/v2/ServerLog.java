@@ -0,0 +1,104 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// The server's activity log. log() only enqueues, so the threads serving
+// clients never wait on output; one writer thread drains the queue in
+// batches and flushes once per batch. When the queue is full lines are
+// dropped and counted rather than slowing the server down.
+//
+//   -Dchat.serverLog=FILE   (standard output)
+//   -Dchat.logQueue=N       (8192 lines)
+//   -Dchat.logTail=N        (500 lines kept for tail())
+public class ServerLog {
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.logQueue", 8192);
+    private static final int TAIL_LINES = Integer.getInteger("chat.logTail", 500);
+    private static final int MAX_BATCH = 512;
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    // Most recent lines written, for observers; guarded by this.
+    private final String[] tail = new String[TAIL_LINES];
+    private long written;
+    private volatile boolean running = true;
+
+    public ServerLog() {
+        this.out = open(System.getProperty("chat.serverLog"));
+        writer = new Thread(this::writeLoop, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Not System.out itself: that flushes on every println.
+    private static PrintStream open(String file) {
+        OutputStream stream = new FileOutputStream(FileDescriptor.out);
+        if (file != null) {
+            try {
+                stream = new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.err.println("Cannot open " + file + ", logging to standard output: " + e.getMessage());
+            }
+        }
+        return new PrintStream(new BufferedOutputStream(stream, 64 * 1024), false, StandardCharsets.UTF_8);
+    }
+
+    public void log(String line) {
+        if (!queue.offer(line)) dropped.increment();
+    }
+
+    public long droppedCount() { return dropped.sum(); }
+
+    // Lines written so far; an observer polls this to see whether tail()
+    // has anything new.
+    public synchronized long writtenCount() { return written; }
+
+    // Up to the last chat.logTail lines written, oldest first.
+    public synchronized List<String> tail() {
+        int n = (int) Math.min(written, tail.length);
+        List<String> lines = new ArrayList<>(n);
+        for (long i = written - n; i < written; i++) {
+            lines.add(tail[(int) (i % tail.length)]);
+        }
+        return lines;
+    }
+
+    // Writes out what is queued and stops the writer.
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        long reportedDrops = 0;
+        while (running || !queue.isEmpty()) {
+            try {
+                if (running) batch.add(queue.take());
+            } catch (InterruptedException e) {
+                // close(): fall through and drain what is left.
+            }
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                batch.add("(" + (drops - reportedDrops) + " log lines dropped)");
+                reportedDrops = drops;
+            }
+            for (String line : batch) out.println(line);
+            out.flush();
+            synchronized (this) {
+                for (String line : batch) {
+                    if (tail.length > 0) tail[(int) (written % tail.length)] = line;
+                    written++;
+                }
+            }
+            batch.clear();
+        }
+    }
+}
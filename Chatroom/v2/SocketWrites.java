@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// How client sockets are set up and how queued lines are coalesced into
+// writes, plus counters for what that achieves:
+//
+//   -Dchat.flushMillis=N     (1)     longest a queued line waits for more
+//                                    to share its write; 0 writes at once
+//   -Dchat.flushBytes=N      (16384) write without waiting once this much
+//                                    is queued
+//   -Dchat.tcpNoDelay=BOOL   (true)
+//   -Dchat.sendBuffer=N      (OS default) SO_SNDBUF
+//   -Dchat.receiveBuffer=N   (OS default) SO_RCVBUF
+//
+// With TCP_NODELAY on, the kernel sends what each write hands it right
+// away, so the batching here is what keeps a busy room from turning into
+// one small segment per line. Bytes read from clients are counted here
+// too, for the metrics.
+public final class SocketWrites {
+    public static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.flushMillis", 1));
+    public static final int FLUSH_BYTES = Integer.getInteger("chat.flushBytes", 16 * 1024);
+    private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+    private static final int SEND_BUFFER = Integer.getInteger("chat.sendBuffer", 0);
+    private static final int RECEIVE_BUFFER = Integer.getInteger("chat.receiveBuffer", 0);
+
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder bytesRead = new LongAdder();
+
+    private SocketWrites() {}
+
+    public static void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NO_DELAY);
+        if (SEND_BUFFER > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+        if (RECEIVE_BUFFER > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+    }
+
+    // Tells a connection turned away at accept why, as far as one
+    // non-blocking write gets, and closes it.
+    public static void refuse(SocketChannel channel, String line) {
+        try (channel) {
+            channel.configureBlocking(false);
+            channel.write(java.nio.ByteBuffer.wrap((line + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {}
+    }
+
+    // One write syscall that sent written bytes and finished completed lines.
+    public static void recordWrite(int completed, long written) {
+        writes.increment();
+        messages.add(completed);
+        bytes.add(written);
+    }
+
+    public static void recordRead(long n) {
+        bytesRead.add(n);
+    }
+
+    public static long messageCount() { return messages.sum(); }
+    public static long writeCount() { return writes.sum(); }
+    public static long byteCount() { return bytes.sum(); }
+    public static long byteReadCount() { return bytesRead.sum(); }
+
+    public static double writesPerMessage() {
+        long m = messages.sum();
+        return m == 0 ? 0 : (double) writes.sum() / m;
+    }
+
+    public static double bytesPerWrite() {
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) bytes.sum() / w;
+    }
+
+    public static String summary() {
+        return String.format("%d lines in %d writes: %.3f writes/line, %.0f bytes/write",
+                messageCount(), writeCount(), writesPerMessage(), bytesPerWrite());
+    }
+}
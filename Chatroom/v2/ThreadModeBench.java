@@ -0,0 +1,119 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Platform vs virtual threads under the blocking ClientHandler model.
+// Reports resident memory per connected client and broadcast delivery latency.
+//
+//   java ThreadModeBench platform 5000 200
+//   java ThreadModeBench virtual 5000 200
+public class ThreadModeBench {
+    private static final int LINE_LENGTH = 20;
+
+    public static void main(String[] args) throws Exception {
+        boolean virtual = args.length > 0 && args[0].equals("virtual");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        ExecutorService executor = ServerThreads.newExecutor(virtual, "bench-client");
+        List<PrintWriter> outs = new CopyOnWriteArrayList<>();
+        ServerSocket server = new ServerSocket(0, connections);
+        executor.execute(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    executor.execute(() -> handle(socket, outs));
+                }
+            } catch (IOException ignored) {}
+        });
+
+        System.gc();
+        long memBefore = residentBytes();
+
+        Selector selector = Selector.open();
+        SocketChannel[] clients = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            clients[i].configureBlocking(false);
+            clients[i].register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(LINE_LENGTH));
+        }
+        while (outs.size() < connections) Thread.sleep(10);
+
+        System.gc();
+        Thread.sleep(500);
+        long perConnection = Math.max(1, (residentBytes() - memBefore) / connections);
+
+        long[] samples = new long[connections * broadcasts];
+        int count = 0;
+        SocketChannel sender = clients[0];
+        for (int b = 0; b < broadcasts; b++) {
+            String line = String.format("%019d\n", System.nanoTime());
+            ByteBuffer frame = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+            while (frame.hasRemaining()) sender.write(frame);
+
+            int received = 0;
+            while (received < connections) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ByteBuffer buf = (ByteBuffer) key.attachment();
+                    ((SocketChannel) key.channel()).read(buf);
+                    if (!buf.hasRemaining()) {
+                        long sent = Long.parseLong(new String(buf.array(), 0, LINE_LENGTH - 1, StandardCharsets.US_ASCII));
+                        samples[count++] = System.nanoTime() - sent;
+                        buf.clear();
+                        received++;
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(samples, 0, count);
+        System.out.printf("mode=%s connections=%d%n", virtual && ServerThreads.virtualThreadsAvailable() ? "virtual" : "platform", connections);
+        System.out.printf("memory/connection=%d bytes  connections/GB=%d%n", perConnection, (1L << 30) / perConnection);
+        System.out.printf("broadcast latency us: p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                percentile(samples, count, 0.50), percentile(samples, count, 0.99),
+                percentile(samples, count, 0.999), samples[count - 1] / 1000.0);
+
+        for (SocketChannel c : clients) c.close();
+        server.close();
+        System.exit(0);
+    }
+
+    private static void handle(Socket socket, List<PrintWriter> outs) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            outs.add(out);
+            String line;
+            while ((line = in.readLine()) != null) {
+                for (PrintWriter o : outs) o.println(line);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static double percentile(long[] sorted, int count, double p) {
+        return sorted[Math.min(count - 1, (int) (count * p))] / 1000.0;
+    }
+
+    // VmRSS covers thread stacks, which is where the two modes differ; the
+    // heap figure is only a fallback off Linux.
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
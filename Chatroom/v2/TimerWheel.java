@@ -0,0 +1,142 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel on one thread: a ring of BUCKETS lists, one visited
+// every -Dchat.timerTickMillis (100). A timeout goes into the bucket its
+// deadline tick hashes to, along with how many whole turns it still has to
+// wait, so scheduling and cancelling are O(1) however many are pending and
+// a tick only walks one bucket. Deadlines are rounded up to a whole tick.
+//
+// Other threads only ever add to two queues; the buckets belong to the
+// wheel's thread. Tasks run on that thread and must not block.
+public final class TimerWheel {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.timerTickMillis", 100));
+    private static final int BUCKETS = 512;
+    private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+    private final Timeout[] heads = new Timeout[BUCKETS];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final LongAdder pending = new LongAdder();
+    private final long start = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Wheel thread only: the tick being processed.
+    private long tick;
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Wheel thread only.
+        private long rounds;
+        private int bucket = -1;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // False if the task already ran or was cancelled before.
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+    }
+
+    public TimerWheel(String name) {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, (due + TICK_NANOS - 1) / TICK_NANOS);
+        pending.increment();
+        added.add(timeout);
+        return timeout;
+    }
+
+    // Scheduled and neither run nor cancelled yet.
+    public long pendingCount() {
+        return pending.sum();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long wait;
+            while ((wait = start + (tick + 1) * TICK_NANOS - System.nanoTime()) > 0 && running) {
+                LockSupport.parkNanos(wait);
+            }
+            tick++;
+            transferAdded();
+            removeCancelled();
+            expire(heads[(int) (tick & (BUCKETS - 1))]);
+        }
+    }
+
+    // A bucket is visited every BUCKETS ticks; rounds counts the visits to
+    // let pass first. Anything already due goes in the current bucket.
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != WAITING) continue;
+            long due = Math.max(timeout.deadline, tick);
+            timeout.rounds = (due - tick) / BUCKETS;
+            link(timeout, (int) (due & (BUCKETS - 1)));
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) unlink(timeout);
+            pending.decrement();
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                unlink(timeout);
+                pending.decrement();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.next = heads[bucket];
+        if (heads[bucket] != null) heads[bucket].prev = timeout;
+        heads[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else heads[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket kept as a single AtomicLong, the time at which the
+// bucket would be full again (GCRA). Taking n tokens moves that time n
+// token intervals later with one CAS, so any number of threads can charge
+// the same bucket without a lock.
+//
+// take() never refuses: what was already read has to be handled anyway.
+// It charges the tokens, running into debt if needed, and returns how long
+// the caller should stop reading for the debt to be paid back. A rate of
+// 0 or less means no limit.
+public final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    // perSecond tokens a second, up to burst saved up.
+    public TokenBucket(long perSecond, long burst) {
+        this.nanosPerToken = perSecond <= 0 ? 0 : Math.max(1, 1_000_000_000L / perSecond);
+        this.burstNanos = Math.max(1, burst) * nanosPerToken;
+    }
+
+    // Nanoseconds to wait before taking more, 0 while within the burst.
+    public long take(long tokens) {
+        if (nanosPerToken == 0) return 0;
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + tokens * nanosPerToken;
+            if (fullAt.compareAndSet(current, next)) return Math.max(0, next - now - burstNanos);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// Buffered InputStream over a blocking channel that can also hand the next
+// n bytes to a direct buffer without going through a byte[].
+public class ChannelInput extends InputStream {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public ChannelInput(ReadableByteChannel channel) {
+        this(channel, 64 * 1024);
+    }
+
+    public ChannelInput(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.flip();
+    }
+
+    private boolean fill() throws IOException {
+        buffer.compact();
+        int n = channel.read(buffer);
+        buffer.flip();
+        return n >= 0;
+    }
+
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) return -1;
+        return buffer.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) {
+            // Large reads skip the intermediate buffer.
+            if (len >= buffer.capacity()) return channel.read(ByteBuffer.wrap(b, off, len));
+            if (!fill()) return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    public int available() {
+        return buffer.remaining();
+    }
+
+    // Fills dst completely.
+    public void readFully(ByteBuffer dst) throws IOException {
+        drainInto(dst);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0) throw new EOFException();
+        }
+    }
+
+    public void skipFully(long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining() && !fill()) throw new EOFException();
+            int n = (int) Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + n);
+            count -= n;
+        }
+    }
+
+    private void drainInto(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), buffer.remaining());
+        if (n == 0) return;
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + n);
+        dst.put(buffer);
+        buffer.limit(limit);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,6 +3,7 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
 
 public class ChatApp {
     public static void main(String[] args) {
@@ -36,7 +37,12 @@ public class ChatApp {
             String port = JOptionPane.showInputDialog(frame, "Enter port to host on:", "5000");
             if (port != null && !port.isEmpty()) {
                 int p = Integer.parseInt(port);
-                new Thread(() -> new ChatServer(p)).start();
+                try {
+                    new ChatServer(p).start();
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(frame, "Could not host on port " + p + ": " + ex.getMessage());
+                    return;
+                }
                 new ChatUI("localhost", p);  // Client connects to own host
                 frame.dispose();
             }
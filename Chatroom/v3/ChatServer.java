@@ -0,0 +1,668 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChatServer {
+    private static final LongAdder connections = Metrics.counter("chat_connections_total", "Connections accepted");
+    private static final LongAdder[] received = new LongAdder[Message.MessageType.values().length];
+    private static final LongAdder framesSent = Metrics.counter("chat_frames_sent_total", "Frames written to clients");
+    private static final LongAdder bytesSent = Metrics.counter("chat_bytes_sent_total", "Bytes written to clients");
+    private static final LongAdder bytesReceived = Metrics.counter("chat_bytes_received_total", "Bytes read from clients");
+    private static final LongAdder fileBytesRelayed = fileBytes("relayed");
+    private static final LongAdder fileBytesStored = fileBytes("stored");
+    private static final LongAdder fileBytesServed = fileBytes("served");
+    private static final LatencyHistogram fanout = Metrics.histogram("chat_broadcast_fanout_seconds",
+            "Time to queue one frame to every member of a room");
+    private static final LatencyHistogram searchLatency = Metrics.histogram("chat_search_seconds",
+            "Time to answer one search, hits read back from the log included");
+    static {
+        for (Message.MessageType type : Message.MessageType.values()) {
+            received[type.ordinal()] = Metrics.counter("chat_messages_received_total", "Messages received from clients", "type", type.name());
+        }
+    }
+
+    private final int port;
+    private final ExecutorService executor;
+    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Room name -> members; "" is the lobby, which everyone starts in.
+    // Empty rooms other than the lobby are dropped.
+    private final Map<String, Set<ClientHandler>> rooms = new ConcurrentHashMap<>();
+    private static final String LOBBY = "";
+    private ServerSocketChannel serverChannel;
+    private FileStore store;
+    private MessageLog log;
+    private HistoryCache recent;
+    private SearchIndex search;
+    private final Presence presence = new Presence();
+    // -Dchat.history: messages replayed to a client when it joins.
+    private static final int HISTORY = Integer.getInteger("chat.history", 50);
+    private static final Set<Message.MessageType> LOGGED =
+            EnumSet.of(Message.MessageType.TEXT, Message.MessageType.CODE, Message.MessageType.FILE_REF);
+    // What a client may send on to others. Everything else a client sends
+    // is a request handled by the server or not accepted from a client.
+    private static final Set<Message.MessageType> ROUTED =
+            EnumSet.of(Message.MessageType.TEXT, Message.MessageType.CODE, Message.MessageType.FILE, Message.MessageType.FILE_RESUME);
+    // -Dchat.searchResults: hits sent back for one search.
+    private static final int SEARCH_RESULTS = Integer.getInteger("chat.searchResults", 20);
+    private static final int PREVIEW_CHARS = 160;
+    // Clients before FILE_STORE cannot decode a FILE_REF.
+    private static final Set<Message.MessageType> LEGACY_SKIP = EnumSet.of(Message.MessageType.FILE_REF);
+
+    // A public share the sharer is still uploading into the store.
+    private record Upload(Message offer, FileTransfer.Download download) {}
+
+    // -Dchat.engine=virtual runs the accept loop and every client on
+    // virtual threads, anything else keeps platform threads.
+    public ChatServer(int port) {
+        this.port = port;
+        this.executor = ServerThreads.newExecutor("virtual".equals(System.getProperty("chat.engine")), "chat-client");
+    }
+
+    private static LongAdder fileBytes(String direction) {
+        return Metrics.counter("chat_file_bytes_total", "File bytes relayed between clients, stored or served from the store",
+                "direction", direction);
+    }
+
+    public void start() throws IOException {
+        store = new FileStore();
+        log = new MessageLog();
+        recent = new HistoryCache(log.isEmpty());
+        search = new SearchIndex();
+        log.forEach(r -> search.add(r.address(), r.timestamp(), r.type(), r.room(), r.from(), r.to(), SearchIndex.text(r.message())));
+        startMetrics();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        executor.execute(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    connections.increment();
+                    executor.execute(new ClientHandler(channel));
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) System.err.println("Server error: " + e.getMessage());
+            }
+        });
+    }
+
+    // The bound port, useful when started on port 0.
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        executor.shutdownNow();
+        presence.stop();
+        if (search != null) search.stop();
+        Metrics.stop();
+        if (log != null) log.close();
+    }
+
+    private void startMetrics() throws IOException {
+        Metrics.gauge("chat_clients", "Logged in clients", clients::size);
+        Metrics.gauge("chat_rooms", "Open rooms, the lobby included", rooms::size);
+        Metrics.gauge("chat_outbound_queued_frames", "Frames waiting in all outbound queues",
+                () -> clients.values().stream().mapToInt(ClientHandler::queuedFrames).sum());
+        Metrics.gauge("chat_outbound_queue_max", "Longest outbound queue",
+                () -> clients.values().stream().mapToInt(ClientHandler::queuedFrames).max().orElse(0));
+        Metrics.counter("chat_outbound_dropped_total", "Frames dropped under drop-oldest", OutboundQueue::droppedCount);
+        Metrics.counter("chat_slow_clients_disconnected_total", "Clients disconnected for not reading", OutboundQueue::disconnectedCount);
+        Metrics.counter("chat_outbound_backpressure_total", "Sends that waited for a full queue", OutboundQueue::backpressuredCount);
+        Metrics.counter("chat_history_cache_hits_total", "Join replays answered from memory", HistoryCache::hitCount);
+        Metrics.counter("chat_history_cache_misses_total", "Join replays read from the log", HistoryCache::missCount);
+        Metrics.gauge("chat_search_documents", "Messages in the search index", search::documentCount);
+        Metrics.gauge("chat_search_segments", "Search index segments", search::segmentCount);
+        Metrics.counter("chat_search_merges_total", "Search index segment merges", SearchIndex::mergeCount);
+        Metrics.counter("chat_compression_raw_bytes_total", "Bytes of frames and chunks before they were sent compressed",
+                Compression::rawByteCount);
+        Metrics.counter("chat_compression_packed_bytes_total", "The same bytes after compression", Compression::packedByteCount);
+        Metrics.counter("chat_deflate_nanoseconds_total", "CPU time spent compressing", Compression::deflateNanos);
+        Metrics.counter("chat_inflate_nanoseconds_total", "CPU time spent decompressing", Compression::inflateNanos);
+        Metrics.start();
+    }
+
+    // Encoded once; every recipient queues the same frame. Costs one send
+    // per member of the room, not per connected client.
+    private void broadcast(String room, Frame frame) {
+        broadcast(room, frame, frame);
+    }
+
+    // The same with a compressed copy of the frame for the members that
+    // read compression: one deflate per broadcast, not per recipient.
+    private void broadcast(String room, Frame frame, Frame packed) {
+        Set<ClientHandler> members = rooms.get(room);
+        if (members == null) return;
+        long start = System.nanoTime();
+        for (ClientHandler client : members) {
+            client.send(client.compresses() ? packed : frame);
+        }
+        fanout.record(System.nanoTime() - start);
+    }
+
+    // Held while a room message is logged and fanned out, and while a
+    // client takes a room's history and joins it, so a message is either
+    // in what the client replays or sent to it live, never neither.
+    private final Object[] roomLocks = new Object[64];
+    {
+        for (int i = 0; i < roomLocks.length; i++) roomLocks[i] = new Object();
+    }
+
+    private Object roomLock(String room) {
+        return roomLocks[room.hashCode() & (roomLocks.length - 1)];
+    }
+
+    // Joins client.room, history first.
+    private void enterWithHistory(ClientHandler client) {
+        synchronized (roomLock(client.room)) {
+            client.replayHistory();
+            enter(client.room, client);
+        }
+    }
+
+    private void enter(String room, ClientHandler client) {
+        rooms.compute(room, (k, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(client);
+            return members;
+        });
+    }
+
+    private void leave(String room, ClientHandler client) {
+        rooms.computeIfPresent(room, (k, members) -> {
+            members.remove(client);
+            return members.isEmpty() && !k.equals(LOBBY) ? null : members;
+        });
+    }
+
+    // One room at a time: a ROOM request moves the client, and an empty or
+    // missing name goes back to the lobby. The new room's recent history is
+    // replayed as on login.
+    private void switchRoom(ClientHandler client, String name) {
+        String room = name == null || name.equals("lobby") ? LOBBY : name;
+        if (!room.equals(LOBBY) && !room.matches("[A-Za-z0-9_-]{1,32}")) {
+            client.send(new Message(Message.MessageType.SYSTEM, "Server", client.username, "Room names are 1-32 letters, digits, - or _."));
+            return;
+        }
+        String previous = client.room;
+        if (previous.equals(room)) return;
+        client.room = room;
+        client.send(new Message(Message.MessageType.SYSTEM, "Server", client.username, "You are now in " + roomName(room)));
+        enterWithHistory(client);
+        leave(previous, client);
+        roomNotice(previous, client.username + " went to " + roomName(room));
+        roomNotice(room, client.username + " entered " + roomName(room));
+    }
+
+    private void roomNotice(String room, String text) {
+        Message notice = new Message(Message.MessageType.SYSTEM, "Server", null, text);
+        notice.setRoom(room.equals(LOBBY) ? null : room);
+        Frame frame = new Frame(MessageCodec.encode(notice));
+        broadcast(room, frame);
+        frame.release();
+    }
+
+    private static String roomName(String room) {
+        return room.equals(LOBBY) ? "the lobby" : "#" + room;
+    }
+
+    // File chunks go to the uploader's room, on the bulk queue, and
+    // only to clients that negotiated chunked transfers. The payload stays
+    // in the direct buffer it was read into, deflated if the sender
+    // deflated it; it is inflated once for whoever cannot read that.
+    private void relayChunk(ClientHandler sender, Message header, ByteBuffer payload, int inflatedLength) throws IOException {
+        fileBytesRelayed.add(payload.remaining());
+        header.setFrom(sender.username);
+        Frame frame = new Frame(inflatedLength < 0 ? MessageCodec.encodeHeader(header, payload.remaining())
+                : MessageCodec.encodeHeader(header, payload.remaining(), inflatedLength), payload);
+        Frame plain = inflatedLength < 0 ? frame : null;
+        List<ClientHandler> targets = new ArrayList<>();
+        if (header.getTo() != null) {
+            ClientHandler target = clients.get(header.getTo());
+            if (target != null) targets.add(target);
+        } else {
+            for (ClientHandler client : rooms.getOrDefault(sender.room, Set.of())) {
+                if (client != sender) targets.add(client);
+            }
+        }
+        for (ClientHandler client : targets) {
+            if (client.version < MessageCodec.CHUNKED_FILES) continue;
+            if (client.version < MessageCodec.COMPRESSION && plain == null) {
+                ByteBuffer inflated = Frame.allocatePayload(inflatedLength);
+                Compression.inflateChunk(payload.duplicate(), inflated);
+                inflated.flip();
+                plain = new Frame(MessageCodec.encodeHeader(header, inflatedLength), inflated);
+            }
+            client.sendBulk(client.version < MessageCodec.COMPRESSION ? plain : frame);
+        }
+        frame.release();
+        if (plain != null && plain != frame) plain.release();
+    }
+
+    private void handle(ClientHandler sender, Message msg) throws IOException {
+        if (msg.getType() == Message.MessageType.ROOM) {
+            switchRoom(sender, msg.getRoom());
+        } else if (msg.getType() == Message.MessageType.FILE_REF) {
+            offerFile(sender, msg);
+        } else if (msg.getType() == Message.MessageType.FILE_RESUME && msg.getTo() == null) {
+            serve(sender, msg);
+        } else if (msg.getType() == Message.MessageType.USER_LIST) {
+            presence.resend(sender);
+        } else if (msg.getType() == Message.MessageType.SEARCH) {
+            search(sender, msg.getContent());
+        } else {
+            route(sender, msg);
+        }
+    }
+
+    // A file shared with the whole room goes through the store: announced
+    // right away if its content is already there, otherwise uploaded once
+    // by the sharer (from wherever an earlier attempt stopped).
+    private void offerFile(ClientHandler sender, Message offer) throws IOException {
+        String hash = offer.getTransferId();
+        if (store.contains(hash)) {
+            announce(sender, offer);
+            return;
+        }
+        if (offer.getFileSize() > store.getCapacity()) {
+            sender.send(new Message(Message.MessageType.SYSTEM, "Server", sender.username, offer.getFileName() + " is too large to share with everyone."));
+            return;
+        }
+        FileTransfer.Download download = store.beginUpload(hash, offer.getFileSize());
+        if (download == null) {
+            sender.send(new Message(Message.MessageType.SYSTEM, "Server", sender.username, offer.getFileName() + " is already being uploaded, share it again in a moment."));
+            return;
+        }
+        if (download.isComplete()) {
+            finishUpload(sender, offer);
+            return;
+        }
+        sender.uploads.put(hash, new Upload(offer, download));
+        requestUpload(sender, offer, download.getReceived());
+    }
+
+    private void requestUpload(ClientHandler sender, Message offer, long offset) {
+        sender.send(new Message(Message.MessageType.FILE_RESUME, null, sender.username, offer.getFileName(),
+                offer.getTransferId(), offer.getFileSize(), offset, null, 0));
+    }
+
+    private void storeChunk(ClientHandler sender, Message header, int length, int inflatedLength) throws IOException {
+        fileBytesStored.add(length);
+        Upload upload = sender.uploads.get(header.getTransferId());
+        if (!upload.download().write(header, length, inflatedLength, sender.input)) {
+            requestUpload(sender, upload.offer(), upload.download().getReceived());
+        }
+        if (upload.download().isComplete()) {
+            sender.uploads.remove(header.getTransferId());
+            finishUpload(sender, upload.offer());
+        }
+    }
+
+    private void finishUpload(ClientHandler sender, Message offer) throws IOException {
+        if (store.commit(offer.getTransferId())) {
+            announce(sender, offer);
+        } else {
+            sender.send(new Message(Message.MessageType.SYSTEM, "Server", sender.username, offer.getFileName() + " arrived corrupted and was not shared."));
+        }
+    }
+
+    // The sharer's room gets a small FILE_REF instead of the file; clients
+    // too old to fetch from the store are told about it in plain text.
+    private void announce(ClientHandler sender, Message offer) {
+        String room = sender.room;
+        Message ref = new Message(Message.MessageType.FILE_REF, sender.username, null, offer.getFileName(),
+                offer.getTransferId(), offer.getFileSize(), 0, null, 0);
+        ref.setRoom(room.equals(LOBBY) ? null : room);
+        byte[] encoded = MessageCodec.encode(ref);
+        Frame refFrame = new Frame(encoded);
+        Frame textFrame = new Frame(MessageCodec.encode(new Message(Message.MessageType.SYSTEM, "Server", null,
+                sender.username + " shared " + offer.getFileName() + ", update your client to download it.")));
+        synchronized (roomLock(room)) {
+            record(ref, room, sender.username, encoded, refFrame);
+            for (ClientHandler client : rooms.getOrDefault(room, Set.of())) {
+                client.send(client.version >= MessageCodec.FILE_STORE ? refFrame : textFrame);
+            }
+        }
+        refFrame.release();
+        textFrame.release();
+    }
+
+    // Streams a stored file to one client from the offset it asks for, on
+    // the bulk queue and its own thread so the client's reader is not held.
+    private void serve(ClientHandler client, Message request) {
+        executor.execute(() -> {
+            String hash = request.getTransferId();
+            try (FileChannel file = store.open(hash)) {
+                if (file == null) {
+                    client.send(new Message(Message.MessageType.SYSTEM, "Server", client.username, request.getFileName() + " is no longer available."));
+                    return;
+                }
+                long size = file.size();
+                long offset = Math.max(0, Math.min(request.getOffset(), size));
+                do {
+                    int length = (int) Math.min(FileTransfer.CHUNK_SIZE, size - offset);
+                    ByteBuffer payload = Frame.allocatePayload(length);
+                    while (payload.hasRemaining()) {
+                        if (file.read(payload, offset + payload.position()) < 0) throw new EOFException();
+                    }
+                    payload.flip();
+                    Message header = new Message(Message.MessageType.FILE_CHUNK, null, client.username, request.getFileName(),
+                            hash, size, offset, null, FileTransfer.checksum(payload));
+                    Frame frame = new Frame(MessageCodec.encodeHeader(header, length), payload);
+                    client.sendBulk(frame);
+                    frame.release();
+                    fileBytesServed.add(length);
+                    offset += length;
+                } while (offset < size && client.isOpen());
+            } catch (IOException ignored) {}
+        });
+    }
+
+    // The same encoded bytes go to the recipients and into the log. A
+    // message without a recipient goes to the sender's room, whatever room
+    // it names itself, and is always from the sender, whoever it claims to
+    // be from. FILE_RESUME only goes to a user; to the server it is a
+    // request handled by serve.
+    private void route(ClientHandler sender, Message msg) {
+        if (!ROUTED.contains(msg.getType()) || (msg.getType() == Message.MessageType.FILE_RESUME && msg.getTo() == null)) {
+            sender.send(new Message(Message.MessageType.SYSTEM, "Server", sender.username, "Cannot send a " + msg.getType() + " message."));
+            return;
+        }
+        msg.setFrom(sender.username);
+        ClientHandler target = msg.getTo() == null ? null : clients.get(msg.getTo());
+        if (msg.getTo() != null && target == null) {
+            sender.send(new Message(Message.MessageType.SYSTEM, "Server", sender.username, "User " + msg.getTo() + " not found."));
+            return;
+        }
+        String room = sender.room;
+        msg.setRoom(target != null || room.equals(LOBBY) ? null : room);
+        byte[] encoded = MessageCodec.encode(msg);
+        Frame frame = new Frame(encoded);
+        byte[] compressed = Compression.ENABLED ? MessageCodec.compress(encoded, Compression.frames()) : encoded;
+        Frame packed = compressed == encoded ? frame : new Frame(compressed);
+        if (target == null) {
+            synchronized (roomLock(room)) {
+                if (LOGGED.contains(msg.getType())) record(msg, room, sender.username, encoded, frame);
+                broadcast(room, frame, packed);
+            }
+        } else {
+            if (LOGGED.contains(msg.getType())) record(msg, room, sender.username, encoded, frame);
+            target.send(target.compresses() ? packed : frame);
+            if (target != sender && msg.getType() != Message.MessageType.FILE_RESUME) sender.send(sender.compresses() ? packed : frame);
+        }
+        frame.release();
+        if (packed != frame) packed.release();
+    }
+
+    // Into the log, the history cache and the search index.
+    private void record(Message msg, String room, String from, byte[] encoded, Frame frame) {
+        long address = log.append(msg.getType(), room, from, msg.getTo(), encoded);
+        recent.add(room, from, msg.getTo(), msg.getType(), frame, encoded.length);
+        if (address >= 0) search.add(address, System.currentTimeMillis(), msg.getType(), room, from, msg.getTo(), SearchIndex.text(msg));
+    }
+
+    // Answered on the searcher's reader thread with one SEARCH message: the
+    // number of matches, then a line per hit, best first, of tab separated
+    //
+    //   timestamp (ms)  type  room ("" for the lobby)  from  to  preview
+    //
+    // The preview is the start of the text on one line.
+    private void search(ClientHandler client, String query) {
+        long start = System.nanoTime();
+        SearchIndex.Result result = search.search(query == null ? "" : query, client.username, SEARCH_RESULTS);
+        StringBuilder sb = new StringBuilder().append(result.matches());
+        for (SearchIndex.Hit hit : result.hits()) {
+            MessageLog.Record record = log.read(hit.address());
+            if (record == null) continue;
+            String text = SearchIndex.text(record.message()).strip().replaceAll("\\s+", " ");
+            if (text.length() > PREVIEW_CHARS) text = text.substring(0, PREVIEW_CHARS - 3) + "...";
+            sb.append('\n').append(record.timestamp()).append('\t').append(record.type().name())
+                    .append('\t').append(record.room()).append('\t').append(record.from())
+                    .append('\t').append(record.to()).append('\t').append(text);
+        }
+        searchLatency.record(System.nanoTime() - start);
+        client.send(new Message(Message.MessageType.SEARCH, "Server", client.username, sb.toString()));
+    }
+
+    // Counts what the readers take off the sockets.
+    private static final class CountingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+
+        CountingChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            if (n > 0) bytesReceived.add(n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    class ClientHandler implements Runnable, Presence.Subscriber {
+        // Queued by close() so the writer drains what is ahead of it first.
+        private static final Frame END_OF_STREAM = new Frame(new byte[0]);
+        private static final int BULK_CAPACITY = 16;
+        private static final int MAX_GATHER = 64;
+
+        private final SocketChannel channel;
+        // Chat traffic and file chunks queue separately and the writer always
+        // prefers chat, so text is never stuck behind a large upload.
+        private final OutboundQueue<Frame> outbound = new OutboundQueue<>();
+        private final OutboundQueue<Frame> bulk = new OutboundQueue<>(BULK_CAPACITY);
+        private final Semaphore pending = new Semaphore(0);
+        private ChannelInput input;
+        private DataInputStream in;
+        private volatile int version;
+        // Inflates what this client sends, once it negotiated COMPRESSION.
+        private Compression inbound;
+        private String username;
+        private volatile String room = LOBBY;
+        // Reader thread only
+        private final Map<String, Upload> uploads = new HashMap<>();
+
+        ClientHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void send(Message msg) {
+            Frame frame = new Frame(MessageCodec.encode(msg, compresses() ? Compression.frames() : null));
+            send(frame);
+            frame.release();
+        }
+
+        public void send(Frame frame) {
+            if (outbound.offer(frame.retain())) {
+                pending.release();
+            } else {
+                frame.release();
+                abort();
+            }
+        }
+
+        // Blocks the uploader while this client is behind, which pushes TCP
+        // backpressure back to the sender instead of buffering the file.
+        void sendBulk(Frame frame) {
+            if (bulk.offerWaiting(frame.retain())) {
+                pending.release();
+            } else {
+                frame.release();
+                abort();
+            }
+        }
+
+        void close() {
+            if (outbound.offer(END_OF_STREAM)) pending.release();
+            else abort();
+        }
+
+        // From the in-memory cache when it has everything asked for,
+        // otherwise straight from the log's mapped segments.
+        private void replayHistory() {
+            Set<Message.MessageType> skip = version >= MessageCodec.FILE_STORE ? Set.of() : LEGACY_SKIP;
+            List<Frame> frames = recent.recent(room, username, HISTORY, skip);
+            if (frames == null) {
+                frames = new ArrayList<>();
+                for (ByteBuffer encoded : log.history(room, username, HISTORY, skip)) frames.add(new Frame(encoded));
+            }
+            for (Frame frame : frames) {
+                send(frame);
+                frame.release();
+            }
+        }
+
+        public boolean wantsDeltas() {
+            return version >= MessageCodec.PRESENCE;
+        }
+
+        public boolean compresses() {
+            return Compression.ENABLED && version >= MessageCodec.COMPRESSION;
+        }
+
+        boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        int queuedFrames() {
+            return outbound.size() + bulk.size();
+        }
+
+        private void abort() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+
+        // The only thread writing to the channel, so a stalled client blocks
+        // nobody else. Everything queued goes out in one gathering write.
+        private void writeLoop() {
+            Frame[] frames = new Frame[MAX_GATHER];
+            ByteBuffer[] batch = new ByteBuffer[MAX_GATHER * 2];
+            try {
+                boolean open = true;
+                while (open) {
+                    pending.acquire();
+                    int count = 0, buffers = 0;
+                    do {
+                        Frame frame = outbound.poll();
+                        if (frame == null) frame = bulk.poll();
+                        if (frame == END_OF_STREAM) {
+                            open = false;
+                            break;
+                        }
+                        if (frame == null) continue;
+                        frames[count++] = frame;
+                        buffers = frame.duplicateInto(batch, buffers);
+                    } while (count < MAX_GATHER && pending.tryAcquire());
+
+                    long remaining = 0;
+                    for (int i = 0; i < buffers; i++) remaining += batch[i].remaining();
+                    bytesSent.add(remaining);
+                    framesSent.add(count);
+                    while (remaining > 0) remaining -= channel.write(batch, 0, buffers);
+                    for (int i = 0; i < count; i++) {
+                        frames[i].release();
+                        frames[i] = null;
+                    }
+                    Arrays.fill(batch, 0, buffers, null);
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                outbound.clear();
+                bulk.clear();
+                abort();
+            }
+        }
+
+        public void run() {
+            try {
+                input = new ChannelInput(new CountingChannel(channel));
+                in = new DataInputStream(input);
+                executor.execute(this::writeLoop);
+
+                MessageCodec.Hello hello = MessageCodec.readHello(in);
+                version = MessageCodec.negotiate(hello.version());
+                send(new Frame(MessageCodec.helloAck(Math.max(version, 0))));
+                if (version < 1) return;
+
+                if (hello.username().isBlank() || hello.username().chars().anyMatch(Character::isISOControl)) {
+                    send(new Message(Message.MessageType.SYSTEM, "Server", null, "Username not allowed."));
+                    return;
+                }
+                if (clients.putIfAbsent(hello.username(), this) != null) {
+                    send(new Message(Message.MessageType.SYSTEM, "Server", null, "Username already taken."));
+                    return;
+                }
+                username = hello.username();
+                if (version >= MessageCodec.COMPRESSION) inbound = Compression.stream();
+                enterWithHistory(this);
+                presence.join(this, username);
+
+                MessageCodec.Header header;
+                while ((header = MessageCodec.readHeader(in, inbound)) != null) {
+                    Message msg = header.message();
+                    received[msg.getType().ordinal()].increment();
+                    if (msg.getType() == Message.MessageType.FILE_CHUNK && header.payloadLength() >= 0
+                            && msg.getTo() == null && version >= MessageCodec.FILE_STORE) {
+                        // Public files from these clients only ever go to the store.
+                        if (uploads.containsKey(msg.getTransferId())) storeChunk(this, msg, header.payloadLength(), header.inflatedLength());
+                        else input.skipFully(header.payloadLength());
+                    } else if (msg.getType() == Message.MessageType.FILE_CHUNK && header.payloadLength() >= 0) {
+                        if (header.payloadLength() > FileTransfer.CHUNK_SIZE || header.inflatedLength() > FileTransfer.CHUNK_SIZE) {
+                            throw new ProtocolException("File chunk too long");
+                        }
+                        ByteBuffer payload = Frame.allocatePayload(header.payloadLength());
+                        input.readFully(payload);
+                        payload.flip();
+                        relayChunk(this, msg, payload, header.inflatedLength());
+                    } else if (header.payloadLength() >= 0) {
+                        handle(this, MessageCodec.withFileData(msg, MessageCodec.readPayload(in, header.payloadLength())));
+                    } else {
+                        handle(this, msg);
+                    }
+                }
+            } catch (IOException ignored) {
+            } finally {
+                close();
+                if (inbound != null) inbound.close();
+                for (Map.Entry<String, Upload> upload : uploads.entrySet()) {
+                    store.abortUpload(upload.getKey(), upload.getValue().download());
+                }
+                if (username != null && clients.remove(username, this)) {
+                    leave(room, this);
+                    presence.leave(this, username);
+                }
+            }
+        }
+    }
+
+    // Runs the server without a window, as ChatApp's host mode does.
+    //
+    //   java ChatServer [port]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        ChatServer server = new ChatServer(port);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            stopped.countDown();
+        }, "chat-shutdown"));
+        server.start();
+        // Virtual threads are daemons, so hold the JVM open ourselves.
+        stopped.await();
+    }
+}
@@ -1,22 +1,44 @@
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatUI {
     private JFrame frame;
-    private JPanel chatPanel;
+    private ChatView chatView;
+    // Incoming messages on their way to the EDT.
+    private final EdtQueue<Message> incoming = new EdtQueue<>(this::apply);
     private JTextField inputField;
     private JButton sendBtn, codeBtn, fileBtn;
-    private JComboBox<String> userListBox;
-    private DefaultComboBoxModel<String> userModel;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private UserList userList;
+    // Version of the last presence snapshot or delta applied; EDT only.
+    private long presenceVersion = -1;
+    private DataOutputStream out;
+    private DataInputStream in;
     private String username;
-    private Socket socket;
+    private int serverVersion;
+    private SocketChannel channel;
+    private ChannelInput input;
+    // Deflates what we send, when the server negotiated COMPRESSION.
+    private Compression outbound;
+    // Transfers whose chunks did not shrink, sent as they are from then on.
+    private final Set<String> incompressible = ConcurrentHashMap.newKeySet();
+    private final Map<String, File> uploads = new ConcurrentHashMap<>();
+    private final Set<String> resuming = ConcurrentHashMap.newKeySet();
+    // Reader thread only. Keyed by transfer id and file name, since store
+    // transfers are known by content and the same content may be saved
+    // under several names. A finished transfer only leaves its key behind,
+    // so stray chunks of it are ignored until it starts over at offset 0.
+    private final Map<String, FileTransfer.Download> downloads = new HashMap<>();
+    private final Set<String> finished = new HashSet<>();
 
     public ChatUI(String ip, int port) {
         setupGUI();
@@ -29,11 +51,8 @@ public class ChatUI {
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLayout(new BorderLayout());
 
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        JScrollPane scrollPane = new JScrollPane(chatPanel);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-        frame.add(scrollPane, BorderLayout.CENTER);
+        chatView = new ChatView(this::fetchFile);
+        frame.add(chatView.getComponent(), BorderLayout.CENTER);
 
         JPanel inputPanel = new JPanel(new BorderLayout());
         inputField = new JTextField();
@@ -50,9 +69,8 @@ public class ChatUI {
         inputPanel.add(btnPanel, BorderLayout.EAST);
         frame.add(inputPanel, BorderLayout.SOUTH);
 
-        userModel = new DefaultComboBoxModel<>();
-        userListBox = new JComboBox<>(userModel);
-        frame.add(userListBox, BorderLayout.WEST);
+        userList = new UserList();
+        frame.add(userList.getComponent(), BorderLayout.WEST);
 
         sendBtn.addActionListener(e -> sendMessage(false));
         codeBtn.addActionListener(e -> sendMessage(true));
@@ -65,17 +83,29 @@ public class ChatUI {
         try {
             username = JOptionPane.showInputDialog(frame, "Enter username:");
             if (username == null || username.trim().isEmpty()) System.exit(0);
+            chatView.setUsername(username);
+            userList.setSelf(username);
 
-            socket = new Socket(ip, port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            out.writeObject(username);
+            channel = SocketChannel.open(new InetSocketAddress(ip, port));
+            out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+            input = new ChannelInput(channel);
+            in = new DataInputStream(input);
+            MessageCodec.writeHello(out, username);
+            serverVersion = MessageCodec.readHelloAck(in);
+            if (Compression.ENABLED && serverVersion >= MessageCodec.COMPRESSION) outbound = Compression.stream();
 
             new Thread(() -> {
                 try {
-                    Object obj;
-                    while ((obj = in.readObject()) != null) {
-                        if (obj instanceof Message msg) handleMessage(msg);
+                    MessageCodec.Header header;
+                    while ((header = MessageCodec.readHeader(in)) != null) {
+                        Message msg = header.message();
+                        if (msg.getType() == Message.MessageType.FILE_CHUNK && header.payloadLength() >= 0) {
+                            receiveChunk(msg, header.payloadLength(), header.inflatedLength());
+                        } else if (header.payloadLength() >= 0) {
+                            handleMessage(MessageCodec.withFileData(msg, MessageCodec.readPayload(in, header.payloadLength())));
+                        } else {
+                            handleMessage(msg);
+                        }
                     }
                 } catch (Exception ignored) {}
             }).start();
@@ -86,97 +116,276 @@ public class ChatUI {
     }
 
     private void handleMessage(Message msg) {
-        SwingUtilities.invokeLater(() -> {
+        if (msg.getType() == Message.MessageType.FILE_RESUME) {
+            resumeUpload(msg);
+            return;
+        }
+        if (msg.getType() == Message.MessageType.FILE) {
+            // Still on the reader thread, so the disk write stays off the EDT.
+            try {
+                FileTransfer.saveBytesToFile(msg.getFileData(), msg.getFileName());
+                postSystemMessage("File received from " + msg.getFrom() + ": " + msg.getFileName());
+            } catch (IOException e) {
+                postSystemMessage("Failed to save file: " + msg.getFileName());
+            }
+            return;
+        }
+        incoming.post(msg);
+    }
+
+    // A frame's worth of incoming messages, applied on the EDT as one
+    // update to the chat view.
+    private void apply(List<Message> batch) {
+        List<Message> rows = new ArrayList<>(batch.size());
+        for (Message msg : batch) {
             switch (msg.getType()) {
-                case TEXT, CODE -> addBubble(msg);
-                case FILE -> {
-                    try {
-                        FileTransfer.saveBytesToFile(msg.getFileData(), msg.getFileName());
-                        addSystemMessage("File received from " + msg.getFrom() + ": " + msg.getFileName());
-                    } catch (IOException e) {
-                        addSystemMessage("Failed to save file: " + msg.getFileName());
-                    }
-                }
-                case SYSTEM -> addSystemMessage(msg.getContent());
-                case USER_LIST -> {
-                    userModel.removeAllElements();
-                    userModel.addElement("Public");
-                    for (String name : msg.getContent().split(",")) {
-                        if (!name.equals(username)) userModel.addElement(name);
-                    }
-                }
+                case TEXT, CODE, FILE_REF, SYSTEM -> rows.add(msg);
+                // From a server older than MessageCodec.PRESENCE.
+                case USER_LIST -> userList.setAll(Arrays.asList(msg.getContent().split(",")));
+                case PRESENCE -> applyPresence(msg.getContent());
+                case SEARCH -> rows.addAll(searchResults(msg.getContent()));
             }
-        });
+        }
+        chatView.addAll(rows);
+    }
+
+    // See Presence for the format. A delta that does not follow the last
+    // version applied means we missed one, so ask for a fresh snapshot.
+    private void applyPresence(String content) {
+        String[] lines = content.split("\n");
+        String[] head = lines[0].split(" ");
+        if (head[0].equals("S")) {
+            userList.setAll(Arrays.asList(lines).subList(1, lines.length));
+            presenceVersion = Long.parseLong(head[1]);
+            return;
+        }
+        if (Long.parseLong(head[1]) != presenceVersion) {
+            try {
+                send(new Message(Message.MessageType.USER_LIST, username, null, null));
+            } catch (IOException ignored) {}
+            return;
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            (lines[i].charAt(0) == '+' ? joined : left).add(lines[i].substring(1));
+        }
+        userList.update(joined, left);
+        presenceVersion = Long.parseLong(head[2]);
+    }
+
+    // See ChatServer.search for the format; each hit becomes a line of its own.
+    private List<Message> searchResults(String content) {
+        String[] lines = content.split("\n");
+        List<Message> rows = new ArrayList<>();
+        rows.add(new Message(Message.MessageType.SYSTEM, null, null, "Search: " + lines[0] + " matches"
+                + (lines.length > 1 ? ", best " + (lines.length - 1) + ":" : "")));
+        DateTimeFormatter time = DateTimeFormatter.ofPattern("MMM d HH:mm").withZone(ZoneId.systemDefault());
+        for (int i = 1; i < lines.length; i++) {
+            String[] f = lines[i].split("\t", 6);
+            String who = !f[4].isEmpty() ? f[3] + " -> " + f[4] : (f[2].isEmpty() ? "lobby " : "#" + f[2] + " ") + f[3];
+            String kind = f[1].equals("CODE") ? " (code)" : f[1].equals("FILE_REF") ? " (file)" : "";
+            rows.add(new Message(Message.MessageType.SYSTEM, null, null,
+                    "  " + time.format(Instant.ofEpochMilli(Long.parseLong(f[0]))) + " " + who + kind + ": " + f[5]));
+        }
+        return rows;
+    }
+
+    private void postSystemMessage(String text) {
+        incoming.post(new Message(Message.MessageType.SYSTEM, null, null, text));
+    }
+
+    // Runs on the reader thread so disk writes stay off the EDT; the payload
+    // goes from the socket to the .part file without a byte[].
+    private void receiveChunk(Message chunk, int length, int inflatedLength) throws IOException {
+        String id = chunk.getTransferId();
+        String key = id + "/" + chunk.getFileName();
+        FileTransfer.Download download = downloads.get(key);
+        if (download == null) {
+            if (chunk.getOffset() > 0 && finished.contains(key)) {
+                input.skipFully(length);
+                return;
+            }
+            finished.remove(key);
+            try {
+                download = new FileTransfer.Download(chunk.getFileName(), id, chunk.getFileSize());
+            } catch (IOException e) {
+                input.skipFully(length);
+                postSystemMessage("Failed to save file: " + chunk.getFileName());
+                return;
+            }
+            downloads.put(key, download);
+        }
+        if (!download.write(chunk, length, inflatedLength, input)) {
+            send(new Message(Message.MessageType.FILE_RESUME, username, chunk.getFrom(), chunk.getFileName(),
+                    id, chunk.getFileSize(), download.getReceived(), null, 0));
+        }
+        if (download.isComplete()) {
+            downloads.remove(key);
+            download.close();
+            finished.add(key);
+            // Chunks without a sender come from the server's file store.
+            String from = chunk.getFrom() == null ? "" : " from " + chunk.getFrom();
+            postSystemMessage("File received" + from + ": " + chunk.getFileName());
+        }
+    }
+
+    // A receiver missed chunks; stream the rest of the file to them alone.
+    // A request without a sender is the server asking for a public share.
+    private void resumeUpload(Message request) {
+        File file = uploads.get(request.getTransferId());
+        String key = request.getTransferId() + "/" + request.getFrom();
+        if (file == null || !resuming.add(key)) return;
+        new Thread(() -> {
+            try {
+                FileTransfer.sendChunks(file, request.getTransferId(), username, request.getFrom(), request.getOffset(), this::sendChunk);
+            } catch (IOException ignored) {
+            } finally {
+                resuming.remove(key);
+            }
+        }, "file-resume").start();
     }
 
     private void sendMessage(boolean isCode) {
         String content = inputField.getText().trim();
         if (content.isEmpty()) return;
         inputField.setText("");
+        if (!isCode && (content.startsWith("/join ") || content.equals("/leave"))) {
+            switchRoom(content.equals("/leave") ? null : content.substring(6).trim());
+            return;
+        }
+        if (!isCode && content.startsWith("/search ")) {
+            search(content.substring(8).trim());
+            return;
+        }
 
-        String toUser = userListBox.getSelectedItem().toString();
-        String to = toUser.equals("Public") ? null : toUser;
+        String toUser = userList.getSelected();
+        String to = toUser.equals(UserList.PUBLIC) ? null : toUser;
         Message.MessageType type = isCode ? Message.MessageType.CODE : Message.MessageType.TEXT;
 
         Message msg = new Message(type, username, to, content);
         try {
-            out.writeObject(msg);
+            send(msg);
         } catch (IOException e) {
             addSystemMessage("Failed to send message.");
         }
     }
 
+    // The server moves us and replays the room's recent messages.
+    private void switchRoom(String room) {
+        Message request = new Message(Message.MessageType.ROOM, username, null, null);
+        request.setRoom(room);
+        try {
+            send(request);
+            frame.setTitle(room == null || room.equals("lobby") ? "Chat Room" : "Chat Room - #" + room);
+        } catch (IOException e) {
+            addSystemMessage("Failed to switch rooms.");
+        }
+    }
+
+    // Words and from:, type: or in: filters; see SearchIndex.
+    private void search(String query) {
+        if (serverVersion < MessageCodec.SEARCH) {
+            addSystemMessage("This server cannot search.");
+            return;
+        }
+        try {
+            send(new Message(Message.MessageType.SEARCH, username, null, query));
+        } catch (IOException e) {
+            addSystemMessage("Failed to search.");
+        }
+    }
+
     private void sendFile() {
         JFileChooser chooser = new JFileChooser();
         int res = chooser.showOpenDialog(frame);
         if (res == JFileChooser.APPROVE_OPTION) {
             File file = chooser.getSelectedFile();
-            try {
-                byte[] data = FileTransfer.fileToBytes(file);
-                String toUser = userListBox.getSelectedItem().toString();
-                String to = toUser.equals("Public") ? null : toUser;
-                Message msg = new Message(username, to, file.getName(), data);
-                out.writeObject(msg);
-                addSystemMessage("File sent: " + file.getName());
-            } catch (IOException e) {
-                addSystemMessage("Failed to send file: " + e.getMessage());
+            String toUser = userList.getSelected();
+            String to = toUser.equals(UserList.PUBLIC) ? null : toUser;
+            if (to == null) {
+                shareFile(file);
+                return;
             }
+            String id = FileTransfer.transferId(file);
+            uploads.put(id, file);
+            addSystemMessage("Sending file: " + file.getName());
+            // Chunks go out from their own thread, interleaved with chat.
+            new Thread(() -> {
+                try {
+                    FileTransfer.sendChunks(file, id, username, to, 0, this::sendChunk);
+                    postSystemMessage("File sent: " + file.getName());
+                } catch (IOException e) {
+                    postSystemMessage("Failed to send file: " + e.getMessage());
+                }
+            }, "file-upload").start();
         }
     }
 
-    private void addBubble(Message msg) {
-        JPanel bubble = new JPanel();
-        bubble.setLayout(new BorderLayout());
-        bubble.setBackground(msg.getFrom().equals(username) ? new Color(220, 248, 198) : new Color(255, 255, 255));
-        bubble.setBorder(BorderFactory.createCompoundBorder(
-                BorderFactory.createEmptyBorder(5, 10, 5, 10),
-                BorderFactory.createLineBorder(Color.GRAY, 1)));
-
-        JTextArea text = new JTextArea(msg.getContent());
-        text.setLineWrap(true);
-        text.setWrapStyleWord(true);
-        text.setEditable(false);
-        text.setFont(msg.getType() == Message.MessageType.CODE ? new Font("Monospaced", Font.PLAIN, 12) : new Font("Segoe UI", Font.PLAIN, 14));
-        text.setOpaque(false);
+    // Public files are offered to the server by content hash. It asks for
+    // the bytes with FILE_RESUME only if it does not have them yet, and the
+    // room gets a FILE_REF to download from.
+    private void shareFile(File file) {
+        addSystemMessage("Sharing file: " + file.getName());
+        new Thread(() -> {
+            try {
+                String hash = FileTransfer.contentHash(file.toPath());
+                uploads.put(hash, file);
+                send(new Message(Message.MessageType.FILE_REF, username, null, file.getName(), hash, file.length(), 0, null, 0));
+            } catch (IOException e) {
+                postSystemMessage("Failed to share file: " + e.getMessage());
+            }
+        }, "file-share").start();
+    }
 
-        JLabel label = new JLabel(msg.getFrom());
-        label.setFont(new Font("Segoe UI", Font.BOLD, 12));
+    private void fetchFile(Message ref) {
+        try {
+            long offset = FileTransfer.received(ref.getFileName(), ref.getTransferId());
+            send(new Message(Message.MessageType.FILE_RESUME, username, null, ref.getFileName(), ref.getTransferId(),
+                    ref.getFileSize(), offset, null, 0));
+        } catch (IOException e) {
+            addSystemMessage("Failed to download " + ref.getFileName());
+        }
+    }
 
-        bubble.add(label, BorderLayout.NORTH);
-        bubble.add(text, BorderLayout.CENTER);
+    private synchronized void send(Message msg) throws IOException {
+        out.write(MessageCodec.encode(msg, outbound));
+        out.flush();
+    }
 
-        JPanel wrap = new JPanel(new FlowLayout(msg.getFrom().equals(username) ? FlowLayout.RIGHT : FlowLayout.LEFT));
-        wrap.add(bubble);
-        wrap.setOpaque(false);
-        chatPanel.add(wrap);
-        chatPanel.revalidate();
-        frame.repaint();
+    // Header through the stream, then the file region straight from the
+    // page cache to the socket with transferTo. When the server reads
+    // compression and the file is not compressed already, the chunk is
+    // read onto the heap and deflated instead, outside the lock so chat
+    // is not held up behind it.
+    private void sendChunk(Message header, FileChannel file, long position, int length) throws IOException {
+        byte[] packed = null;
+        if (outbound != null && !Compression.isCompressedType(header.getFileName()) && !incompressible.contains(header.getTransferId())) {
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            while (chunk.hasRemaining()) {
+                if (file.read(chunk, position + chunk.position()) < 0) throw new EOFException();
+            }
+            packed = Compression.deflateChunk(chunk.flip());
+            if (packed == null) incompressible.add(header.getTransferId());
+        }
+        synchronized (this) {
+            if (packed != null) {
+                out.write(MessageCodec.encodeHeader(header, packed.length, length));
+                out.write(packed);
+                out.flush();
+                return;
+            }
+            out.write(MessageCodec.encodeHeader(header, length));
+            out.flush();
+            while (length > 0) {
+                long n = file.transferTo(position, length, channel);
+                position += n;
+                length -= (int) n;
+            }
+        }
     }
 
     private void addSystemMessage(String msg) {
-        JLabel label = new JLabel("[System] " + msg);
-        label.setForeground(Color.GRAY);
-        chatPanel.add(label);
-        chatPanel.revalidate();
+        chatView.addSystemMessage(msg);
     }
-}
\ No newline at end of file
+}
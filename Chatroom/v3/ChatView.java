@@ -0,0 +1,368 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.function.Consumer;
+
+// The conversation as a JList: rows are painted by one shared renderer, so
+// a message costs an entry in the model instead of a tree of components,
+// and only visible rows are ever painted. Each row remembers its wrapped
+// lines and height for the width it was last laid out at.
+//
+// At most -Dchat.viewMessages=N (2000) rows are kept in memory. Older rows
+// are spilled to a temporary file and paged back in, a page at a time,
+// when the view is scrolled to the top.
+public class ChatView {
+    private static final int MAX_ROWS = Integer.getInteger("chat.viewMessages", 2000);
+    private static final int PAGE = 200;
+    private static final Color OWN = new Color(220, 248, 198);
+    private static final Color OTHER = Color.WHITE;
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font CODE_FONT = new Font("Monospaced", Font.PLAIN, 12);
+    private static final Font NAME_FONT = new Font("Segoe UI", Font.BOLD, 12);
+    private static final Font SYSTEM_FONT = new Font("Segoe UI", Font.PLAIN, 12);
+
+    private String username;
+    private final Model model = new Model();
+    private final JList<Row> list;
+    private final JScrollPane scrollPane;
+    // Asked to download a shared file when its row is clicked.
+    private final Consumer<Message> fetch;
+    private final Set<String> fetched = new HashSet<>();
+    private Spill spill;
+
+    public ChatView(Consumer<Message> fetch) {
+        this.fetch = fetch;
+        list = new JList<>(model) {
+            // Rows wrap to the viewport instead of widening the list.
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+        };
+        list.setCellRenderer(new Renderer());
+        list.setSelectionModel(new DefaultListSelectionModel() {
+            public void setSelectionInterval(int from, int to) {}
+            public void addSelectionInterval(int from, int to) {}
+        });
+        list.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                int index = list.locationToIndex(e.getPoint());
+                if (index >= 0 && list.getCellBounds(index, index).contains(e.getPoint())) clicked(model.get(index));
+            }
+        });
+        // Row heights depend on the width; make the list measure them again.
+        list.addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                list.setFixedCellHeight(1);
+                list.setFixedCellHeight(-1);
+            }
+        });
+        scrollPane = new JScrollPane(list);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && model.first > 0) {
+                SwingUtilities.invokeLater(this::pageIn);
+            }
+        });
+    }
+
+    public JComponent getComponent() {
+        return scrollPane;
+    }
+
+    // Our own messages are drawn on the right.
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    // EDT only, like everything below.
+    public void add(Message msg) {
+        addAll(List.of(msg));
+    }
+
+    // One model update for the whole batch. The view keeps following the
+    // newest row if it was showing it.
+    public void addAll(List<Message> messages) {
+        if (messages.isEmpty()) return;
+        boolean following = atBottom();
+        model.append(messages);
+        // Trim older rows, unless the user is reading paged-in history.
+        if (following || model.size() > 2 * MAX_ROWS) model.evict(model.size() - MAX_ROWS);
+        if (following) list.ensureIndexIsVisible(model.size() - 1);
+    }
+
+    public void addSystemMessage(String text) {
+        add(new Message(Message.MessageType.SYSTEM, null, null, text));
+    }
+
+    private boolean atBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+
+    private void clicked(Row row) {
+        Message msg = row.msg;
+        if (msg.getType() != Message.MessageType.FILE_REF || row.own()) return;
+        if (!fetched.add(msg.getTransferId())) return;
+        row.invalidate();
+        model.changed(row);
+        fetch.accept(msg);
+    }
+
+    // Brings back the page of spilled rows just above the first one shown,
+    // keeping the row that was on top where it was.
+    private void pageIn() {
+        if (model.first == 0 || scrollPane.getVerticalScrollBar().getValue() != 0) return;
+        // Rows that could not be spilled cannot be paged back.
+        if (spill == null || model.first > spill.count()) return;
+        List<Message> older;
+        try {
+            older = spill.read(Math.max(0, model.first - PAGE), model.first);
+        } catch (IOException e) {
+            return;
+        }
+        Row top = model.size() > 0 ? model.get(0) : null;
+        model.prepend(older);
+        if (top != null) {
+            Rectangle r = list.getCellBounds(older.size(), older.size());
+            if (r != null) list.scrollRectToVisible(new Rectangle(0, r.y, 1, list.getVisibleRect().height));
+        }
+    }
+
+    private final class Row {
+        final Message msg;
+        private int width = -1;
+        private int height;
+        private List<String> lines;
+
+        Row(Message msg) {
+            this.msg = msg;
+        }
+
+        boolean own() {
+            return msg.getFrom() != null && msg.getFrom().equals(username);
+        }
+
+        boolean bubble() {
+            return msg.getType() == Message.MessageType.TEXT || msg.getType() == Message.MessageType.CODE;
+        }
+
+        String text() {
+            if (msg.getType() != Message.MessageType.FILE_REF) {
+                return bubble() ? msg.getContent() : "[System] " + msg.getContent();
+            }
+            if (own()) return "[System] File shared: " + msg.getFileName();
+            return "[System] " + msg.getFrom() + " shared " + msg.getFileName()
+                    + " (" + Math.max(1, msg.getFileSize() / 1024) + " KB) - "
+                    + (fetched.contains(msg.getTransferId()) ? "downloading" : "click to download");
+        }
+
+        Font font() {
+            if (!bubble()) return SYSTEM_FONT;
+            return msg.getType() == Message.MessageType.CODE ? CODE_FONT : TEXT_FONT;
+        }
+
+        void invalidate() {
+            width = -1;
+        }
+
+        // Wraps the text for a list this wide, once per width.
+        void layout(JComponent c, int listWidth) {
+            if (listWidth == width) return;
+            width = listWidth;
+            FontMetrics fm = c.getFontMetrics(font());
+            int textWidth = Math.max(50, bubble() ? listWidth * 3 / 4 - 30 : listWidth - 20);
+            lines = wrap(text(), fm, textWidth);
+            height = lines.size() * fm.getHeight() + (bubble() ? c.getFontMetrics(NAME_FONT).getHeight() + 22 : 6);
+        }
+    }
+
+    // Breaks after the last space that fits, or mid-word if there is none.
+    private static List<String> wrap(String text, FontMetrics fm, int width) {
+        List<String> lines = new ArrayList<>();
+        for (String para : (text == null ? "" : text).split("\n", -1)) {
+            int start = 0;
+            while (true) {
+                int end = start;
+                int lastSpace = -1;
+                int w = 0;
+                while (end < para.length() && (end == start || w + fm.charWidth(para.charAt(end)) <= width)) {
+                    w += fm.charWidth(para.charAt(end));
+                    if (para.charAt(end) == ' ') lastSpace = end;
+                    end++;
+                }
+                if (end == para.length()) {
+                    lines.add(para.substring(start));
+                    break;
+                }
+                if (lastSpace >= start) end = lastSpace + 1;
+                lines.add(para.substring(start, end));
+                start = end;
+            }
+        }
+        return lines;
+    }
+
+    // Paints whichever row it is handed; sizes come from the row's cache.
+    @SuppressWarnings("serial")
+    private final class Renderer extends JComponent implements ListCellRenderer<Row> {
+        private Row row;
+
+        public Component getListCellRendererComponent(JList<? extends Row> list, Row value, int index,
+                                                      boolean selected, boolean focused) {
+            row = value;
+            row.layout(this, list.getWidth());
+            return this;
+        }
+
+        public Dimension getPreferredSize() {
+            return new Dimension(10, row == null ? 0 : row.height);
+        }
+
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            FontMetrics fm = g.getFontMetrics(row.font());
+            if (!row.bubble()) {
+                g.setColor(Color.GRAY);
+                g.setFont(row.font());
+                int y = 3 + fm.getAscent();
+                for (String line : row.lines) {
+                    g.drawString(line, 10, y);
+                    y += fm.getHeight();
+                }
+                return;
+            }
+            FontMetrics nameFm = g.getFontMetrics(NAME_FONT);
+            int textWidth = 0;
+            for (String line : row.lines) textWidth = Math.max(textWidth, fm.stringWidth(line));
+            int w = Math.max(textWidth, nameFm.stringWidth(row.msg.getFrom())) + 20;
+            int h = getHeight() - 10;
+            int x = row.own() ? getWidth() - w - 10 : 10;
+            g.setColor(row.own() ? OWN : OTHER);
+            g.fillRect(x, 5, w, h);
+            g.setColor(Color.GRAY);
+            g.drawRect(x, 5, w - 1, h - 1);
+            g.setColor(Color.BLACK);
+            g.setFont(NAME_FONT);
+            g.drawString(row.msg.getFrom(), x + 10, 10 + nameFm.getAscent());
+            g.setFont(row.font());
+            int y = 12 + nameFm.getHeight() + fm.getAscent();
+            for (String line : row.lines) {
+                g.drawString(line, x + 10, y);
+                y += fm.getHeight();
+            }
+        }
+    }
+
+    // The rows in memory are messages first .. first + size() - 1 of the
+    // session; everything before first is in the spill file.
+    @SuppressWarnings("serial")
+    private final class Model extends AbstractListModel<Row> {
+        private final ArrayDeque<Row> rows = new ArrayDeque<>();
+        private Row[] array = new Row[0];
+        private boolean stale;
+        private int first;
+
+        public int getSize() {
+            return rows.size();
+        }
+
+        public Row getElementAt(int index) {
+            return get(index);
+        }
+
+        int size() {
+            return rows.size();
+        }
+
+        Row get(int index) {
+            if (stale) {
+                array = rows.toArray(array);
+                stale = false;
+            }
+            return array[index];
+        }
+
+        void append(List<Message> messages) {
+            int from = rows.size();
+            for (Message msg : messages) rows.addLast(new Row(msg));
+            stale = true;
+            fireIntervalAdded(this, from, rows.size() - 1);
+        }
+
+        void prepend(List<Message> messages) {
+            for (int i = messages.size() - 1; i >= 0; i--) rows.addFirst(new Row(messages.get(i)));
+            first -= messages.size();
+            stale = true;
+            fireIntervalAdded(this, 0, messages.size() - 1);
+        }
+
+        // Drops the n oldest rows, writing any the spill does not have yet.
+        void evict(int n) {
+            if (n <= 0) return;
+            for (int i = 0; i < n; i++) {
+                Row row = rows.pollFirst();
+                if (spill == null) spill = Spill.create();
+                if (spill != null && first == spill.count()) spill.write(row.msg);
+                first++;
+            }
+            stale = true;
+            fireIntervalRemoved(this, 0, n - 1);
+        }
+
+        void changed(Row row) {
+            int index = Arrays.asList(rows.toArray(array)).indexOf(row);
+            if (index >= 0) fireContentsChanged(this, index, index);
+        }
+    }
+
+    // Evicted messages in MessageCodec frames, oldest first, in a file
+    // deleted on exit. Without one, evicted rows are simply gone.
+    private static final class Spill {
+        private final RandomAccessFile file;
+        private long[] offsets = new long[1024];
+        private int count;
+
+        private Spill(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        static Spill create() {
+            try {
+                File f = File.createTempFile("chatview", ".spill");
+                f.deleteOnExit();
+                return new Spill(new RandomAccessFile(f, "rw"));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        int count() {
+            return count;
+        }
+
+        void write(Message msg) {
+            try {
+                if (count + 1 == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                byte[] frame = MessageCodec.encode(msg);
+                file.seek(offsets[count]);
+                file.write(frame);
+                offsets[count + 1] = offsets[count] + frame.length;
+                count++;
+            } catch (IOException ignored) {}
+        }
+
+        List<Message> read(int from, int to) throws IOException {
+            byte[] bytes = new byte[(int) (offsets[to] - offsets[from])];
+            file.seek(offsets[from]);
+            file.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            List<Message> messages = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) messages.add(MessageCodec.read(in));
+            return messages;
+        }
+    }
+}
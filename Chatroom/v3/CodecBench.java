@@ -0,0 +1,105 @@
+import java.io.*;
+
+// MessageCodec vs ObjectOutputStream for a typical chat line, a code
+// snippet and a small file: bytes on the wire and ns to encode/decode.
+// The ObjectOutputStream case reuses one stream and reset()s it per
+// message, which is the best case for serialization on a live connection.
+//
+//   java CodecBench [iterations]
+public class CodecBench {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Message[] samples = {
+                new Message(Message.MessageType.TEXT, "alice", null, "anyone up for lunch at noon?"),
+                new Message(Message.MessageType.CODE, "bob", "alice", "for (int i = 0; i < n; i++) {\n    sum += a[i];\n}"),
+                new Message("carol", null, "notes.txt", new byte[4096]),
+        };
+
+        for (int round = 0; round < 2; round++) {
+            for (Message msg : samples) {
+                bench(msg, iterations, round == 1);
+            }
+        }
+    }
+
+    private static void bench(Message msg, int iterations, boolean report) throws Exception {
+        long sink = 0;
+
+        long start = System.nanoTime();
+        byte[] frame = null;
+        for (int i = 0; i < iterations; i++) {
+            frame = MessageCodec.encode(msg);
+            sink += frame.length;
+        }
+        long codecEncode = (System.nanoTime() - start) / iterations;
+
+        DataInputStream frames = new DataInputStream(new RepeatingInputStream(frame));
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += MessageCodec.read(frames).getType().ordinal();
+        }
+        long codecDecode = (System.nanoTime() - start) / iterations;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.flush();
+        int header = bytes.size();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes.reset();
+            oos.reset();
+            oos.writeObject(msg);
+            oos.flush();
+            sink += bytes.size();
+        }
+        long serialEncode = (System.nanoTime() - start) / iterations;
+        int serialSize = bytes.size();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ObjectOutputStream writer = new ObjectOutputStream(stream);
+        int decodeIterations = Math.min(iterations, 20_000);
+        for (int i = 0; i < decodeIterations; i++) {
+            writer.reset();
+            writer.writeObject(msg);
+        }
+        writer.flush();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        start = System.nanoTime();
+        for (int i = 0; i < decodeIterations; i++) {
+            sink += ((Message) ois.readObject()).getType().ordinal();
+        }
+        long serialDecode = (System.nanoTime() - start) / decodeIterations;
+
+        if (report) {
+            System.out.printf("%-5s codec:        %6d B  encode %6d ns  decode %6d ns%n",
+                    msg.getType(), frame.length, codecEncode, codecDecode);
+            System.out.printf("%-5s serialization: %6d B  encode %6d ns  decode %6d ns  (+%d B stream header)%n",
+                    msg.getType(), serialSize, serialEncode, serialDecode, header);
+        }
+        if (sink == 42) System.out.println(); // keeps the JIT from dropping the loops
+    }
+
+    // Serves the same frame forever so decoding never touches the disk or network.
+    static class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int pos;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        public int read() {
+            int b = data[pos++] & 0xff;
+            if (pos == data.length) pos = 0;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            if (pos == data.length) pos = 0;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.Closeable;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate for peers that negotiated MessageCodec.COMPRESSION, in two kinds
+// of context:
+//
+//   frames()   stateless: each frame is compressed on its own against a
+//              preset dictionary of common chat and code tokens. The server
+//              sends with it, so a broadcast is compressed once and the
+//              same bytes go to every member whatever each has seen before.
+//   stream()   one deflate stream per connection, flushed after every
+//              frame, so a client's messages compress against everything
+//              it sent earlier (the same log lines, a snippet pasted
+//              again). Clients send with it; the server keeps the matching
+//              inflater for each of them.
+//
+// Frames whose fields are under -Dchat.compressMinBytes (256) go out
+// plain, and file chunks only compressed when the file name does not say
+// the content is compressed already.
+//
+//   -Dchat.compression=false    never send compressed (still reads it)
+//   -Dchat.compressionLevel=N   deflate level 1-9 (6)
+public final class Compression implements Closeable {
+    public static final boolean ENABLED = !"false".equals(System.getProperty("chat.compression"));
+    public static final int MIN_BYTES = Integer.getInteger("chat.compressMinBytes", 256);
+    private static final int LEVEL = Integer.getInteger("chat.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+    // Deflate ends every flushed frame with this empty stored block; it is
+    // left off the wire and put back before inflating.
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war", "apk",
+            "png", "jpg", "jpeg", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a", "mp4", "m4v", "mkv", "mov", "webm", "avi",
+            "pdf", "docx", "xlsx", "pptx", "odt", "woff", "woff2");
+
+    // Deflate finds matches nearer the end of the dictionary more cheaply,
+    // so the most common tokens go last.
+    private static final byte[] DICTIONARY = String.join("",
+            "SELECT * FROM  WHERE  ORDER BY  GROUP BY  LIMIT ",
+            "Exception in thread \"main\" java.lang.NullPointerException\n\tat ",
+            "Caused by: ERROR WARN INFO DEBUG TRACE ",
+            "#include <stdio.h>\nint main(int argc, char **argv) {\n",
+            "def __init__(self, self. import numpy as np\nfrom  import ",
+            "function const let var => console.log(document.getElementById(",
+            "public static void main(String[] args) {\n",
+            "private final public class interface extends implements ",
+            "import java.util.*;\nimport java.io.*;\n",
+            "@Override\n    public String toString() {\n        return ",
+            "throw new IllegalArgumentException(\"",
+            "} catch (IOException e) {\n            e.printStackTrace();\n        }\n",
+            "for (int i = 0; i < n; i++) {\n    ",
+            "if (x == null) return null;\n    } else {\n        ",
+            "String int long boolean double void null true false new return ",
+            "https://www.github.com/ http://localhost:8080/ ",
+            "the and that this with have you for not are but what was ",
+            "can you please thanks thank I think it's don't I'm just ",
+            "does anyone know how to fix this error when I run ",
+            "Server: joined. left. went to entered the lobby ").getBytes(StandardCharsets.UTF_8);
+
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder packedBytes = new LongAdder();
+    private static final LongAdder deflateNanos = new LongAdder();
+    private static final LongAdder inflateNanos = new LongAdder();
+
+    // Deflate never inflates more than this many bytes from one.
+    private static final int MAX_RATIO = 1032;
+
+    // Idle deflaters and inflaters for frames() and file chunks. Their
+    // native memory is only freed by end(), so the pool stays small and
+    // whatever does not fit back in is ended instead of left to the
+    // thread that borrowed it.
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static final Compression FRAMES = new Compression(null, null);
+
+    // Null for frames(), which borrows from the pools.
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    private Compression(Deflater deflater, Inflater inflater) {
+        this.deflater = deflater;
+        this.inflater = inflater;
+    }
+
+    // Shared and thread-safe; close() does nothing.
+    public static Compression frames() {
+        return FRAMES;
+    }
+
+    // One direction of one connection: frames must be deflated, and
+    // inflated on the other end, in the order they are sent.
+    public static Compression stream() {
+        Deflater deflater = new Deflater(LEVEL, true);
+        deflater.setDictionary(DICTIONARY);
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return new Compression(deflater, inflater);
+    }
+
+    public static boolean isCompressedType(String fileName) {
+        int dot = fileName == null ? -1 : fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // len bytes of src from off, deflated. frames() returns null when that
+    // is no smaller; a stream has to send whatever it deflated, since the
+    // other end's inflater must see it to stay in step.
+    public byte[] deflate(byte[] src, int off, int len) {
+        long start = System.nanoTime();
+        byte[] packed;
+        if (deflater == null) {
+            Deflater d = borrowDeflater();
+            try {
+                d.setDictionary(DICTIONARY);
+                d.setInput(src, off, len);
+                d.finish();
+                packed = drain(d, Deflater.NO_FLUSH, len);
+            } finally {
+                giveBack(d);
+            }
+            if (packed.length >= len) packed = null;
+        } else {
+            deflater.setInput(src, off, len);
+            packed = drain(deflater, Deflater.SYNC_FLUSH, len);
+            packed = Arrays.copyOf(packed, packed.length - SYNC_TAIL.length);
+        }
+        deflateNanos.add(System.nanoTime() - start);
+        if (packed != null) {
+            rawBytes.add(len);
+            packedBytes.add(packed.length);
+        }
+        return packed;
+    }
+
+    // Throws unless packed inflates to exactly rawLength bytes. rawLength
+    // comes from the peer, so the buffer grows with what actually inflates
+    // rather than being sized from it up front.
+    public byte[] inflate(byte[] packed, int rawLength) throws ProtocolException {
+        if (rawLength > (long) (packed.length + SYNC_TAIL.length) * MAX_RATIO) {
+            throw new ProtocolException("Compressed frame does not match its length");
+        }
+        long start = System.nanoTime();
+        Inflater i = inflater;
+        if (i == null) {
+            i = borrowInflater();
+            i.setDictionary(DICTIONARY);
+            i.setInput(packed);
+        } else {
+            byte[] input = Arrays.copyOf(packed, packed.length + SYNC_TAIL.length);
+            System.arraycopy(SYNC_TAIL, 0, input, packed.length, SYNC_TAIL.length);
+            i.setInput(input);
+        }
+        // One spare byte, so a frame that inflates to more than it claims is caught.
+        byte[] raw = new byte[(int) Math.min(rawLength + 1L, 4L * packed.length + 64)];
+        int n = 0;
+        try {
+            while (!i.finished() && !i.needsInput() && !i.needsDictionary()) {
+                if (n == raw.length) {
+                    if (n > rawLength) break;
+                    raw = Arrays.copyOf(raw, (int) Math.min(rawLength + 1L, 2L * n));
+                }
+                n += i.inflate(raw, n, raw.length - n);
+            }
+            if (n != rawLength || i.getRemaining() != 0) throw new ProtocolException("Compressed frame does not match its length");
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed frame: " + e.getMessage());
+        } finally {
+            if (inflater == null) giveBack(i);
+            inflateNanos.add(System.nanoTime() - start);
+        }
+        return n == raw.length ? raw : Arrays.copyOf(raw, n);
+    }
+
+    // A file chunk on its own, without the dictionary. Null unless it
+    // shrinks by at least an eighth, which is not worth the receiver's
+    // inflate otherwise.
+    public static byte[] deflateChunk(ByteBuffer chunk) {
+        long start = System.nanoTime();
+        int len = chunk.remaining();
+        Deflater d = borrowDeflater();
+        byte[] packed;
+        try {
+            d.setInput(chunk.duplicate());
+            d.finish();
+            packed = drain(d, Deflater.NO_FLUSH, len);
+        } finally {
+            giveBack(d);
+        }
+        deflateNanos.add(System.nanoTime() - start);
+        if (packed.length > len - len / 8) return null;
+        rawBytes.add(len);
+        packedBytes.add(packed.length);
+        return packed;
+    }
+
+    // Inflates packed into dst, which must come out exactly full.
+    public static void inflateChunk(ByteBuffer packed, ByteBuffer dst) throws ProtocolException {
+        long start = System.nanoTime();
+        Inflater i = borrowInflater();
+        i.setInput(packed);
+        try {
+            while (!i.finished() && dst.hasRemaining()) {
+                if (i.inflate(dst) == 0 && (i.needsInput() || i.needsDictionary())) break;
+            }
+            if (dst.hasRemaining() || !i.finished()) throw new ProtocolException("Compressed chunk does not match its length");
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed chunk: " + e.getMessage());
+        } finally {
+            giveBack(i);
+            inflateNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static Deflater borrowDeflater() {
+        Deflater d = deflaters.poll();
+        return d != null ? d : new Deflater(LEVEL, true);
+    }
+
+    private static Inflater borrowInflater() {
+        Inflater i = inflaters.poll();
+        return i != null ? i : new Inflater(true);
+    }
+
+    private static void giveBack(Deflater d) {
+        d.reset();
+        if (!deflaters.offer(d)) d.end();
+    }
+
+    private static void giveBack(Inflater i) {
+        i.reset();
+        if (!inflaters.offer(i)) i.end();
+    }
+
+    private static byte[] drain(Deflater d, int flush, int len) {
+        byte[] out = new byte[len / 2 + 64];
+        int n = 0;
+        do {
+            if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+            n += d.deflate(out, n, out.length - n, flush);
+        } while (flush == Deflater.SYNC_FLUSH ? n == out.length : !d.finished());
+        return Arrays.copyOf(out, n);
+    }
+
+    public void close() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+
+    // Totals over every frame and chunk sent compressed.
+    public static long rawByteCount() {
+        return rawBytes.sum();
+    }
+
+    public static long packedByteCount() {
+        return packedBytes.sum();
+    }
+
+    public static long deflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    public static long inflateNanos() {
+        return inflateNanos.sum();
+    }
+}
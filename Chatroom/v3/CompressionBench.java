@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+
+// What compression saves on the wire and costs in CPU, per kind of
+// traffic: a chat line, a burst of text, a code snippet, a pasted log, a
+// presence snapshot, and file chunks of text and of random bytes. Frames
+// are compressed both ways the protocol does it, on their own as the
+// server sends (with the preset dictionary) and as one client's stream of
+// similar messages; chunks on their own. Bytes are per message on average,
+// CPU is ms per MB of uncompressed input.
+//
+//   java [-Dchat.compressionLevel=N] CompressionBench [messages]
+public class CompressionBench {
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(1);
+        Map<String, IntFunction<Message>> samples = new LinkedHashMap<>();
+        samples.put("line", i -> text("ok, see you at " + (i % 12 + 1) + " then"));
+        samples.put("burst", i -> text(burst(random)));
+        samples.put("code", i -> code(snippet(random)));
+        samples.put("log", i -> code(log(random, 40)));
+        samples.put("presence", i -> presence(1000, i));
+
+        System.out.printf("%-10s %8s | %8s %6s %9s %9s | %8s %6s %9s %9s%n", "sample", "plain B",
+                "frame B", "saved", "deflate", "inflate", "stream B", "saved", "deflate", "inflate");
+        for (int round = 0; round < 2; round++) {
+            for (Map.Entry<String, IntFunction<Message>> sample : samples.entrySet()) {
+                byte[][] frames = new byte[messages][];
+                for (int i = 0; i < messages; i++) frames[i] = MessageCodec.encode(sample.getValue().apply(i));
+                String frame = frames(frames, Compression.frames(), Compression.frames());
+                try (Compression sender = Compression.stream(); Compression receiver = Compression.stream()) {
+                    String stream = frames(frames, sender, receiver);
+                    if (round == 1) System.out.printf("%-10s %8d | %s | %s%n", sample.getKey(), average(frames), frame, stream);
+                }
+            }
+        }
+
+        System.out.printf("%n%-10s %8s | %8s %6s %9s %9s%n", "chunk", "plain B", "packed B", "saved", "deflate", "inflate");
+        StringBuilder text = new StringBuilder();
+        while (text.length() < FileTransfer.CHUNK_SIZE) text.append(log(random, 40));
+        byte[] textChunk = Arrays.copyOf(text.toString().getBytes("UTF-8"), FileTransfer.CHUNK_SIZE);
+        byte[] randomChunk = new byte[FileTransfer.CHUNK_SIZE];
+        random.nextBytes(randomChunk);
+        int chunks = Math.max(1, messages / 10);
+        for (int round = 0; round < 2; round++) {
+            for (byte[] chunk : new byte[][] {textChunk, randomChunk}) {
+                String result = chunks(chunk, chunks);
+                if (round == 1) System.out.printf("%-10s %8d | %s%n", chunk == textChunk ? "text" : "random", chunk.length, result);
+            }
+        }
+        if (sink == 42) System.out.println(); // keeps the JIT from dropping the loops
+    }
+
+    // Compresses then decodes every frame, in order, as the receiving end
+    // would.
+    private static String frames(byte[][] frames, Compression sender, Compression receiver) throws IOException {
+        byte[][] packed = new byte[frames.length][];
+        long raw = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames.length; i++) {
+            packed[i] = MessageCodec.compress(frames[i], sender);
+            raw += frames[i].length;
+        }
+        long deflate = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (byte[] frame : packed) {
+            sink += MessageCodec.read(new DataInputStream(new ByteArrayInputStream(frame)), receiver).getType().ordinal();
+        }
+        long inflate = System.nanoTime() - start;
+        long wire = 0;
+        for (byte[] frame : packed) wire += frame.length;
+        return String.format("%8d %5.1f%% %6.2f ms %6.2f ms", wire / frames.length, 100.0 * (raw - wire) / raw,
+                msPerMB(deflate, raw), msPerMB(inflate, raw));
+    }
+
+    private static String chunks(byte[] chunk, int count) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(chunk);
+        byte[] packed = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            packed = Compression.deflateChunk(src);
+            sink += packed == null ? 0 : packed.length;
+        }
+        long deflate = System.nanoTime() - start;
+        long inflate = 0;
+        int wire = chunk.length;
+        if (packed != null) {
+            wire = packed.length;
+            ByteBuffer dst = ByteBuffer.allocateDirect(chunk.length);
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                dst.clear();
+                Compression.inflateChunk(ByteBuffer.wrap(packed), dst);
+                sink += dst.position();
+            }
+            inflate = System.nanoTime() - start;
+        }
+        long raw = (long) chunk.length * count;
+        return String.format("%8d %5.1f%% %6.2f ms %6.2f ms", wire, 100.0 * (chunk.length - wire) / chunk.length,
+                msPerMB(deflate, raw), msPerMB(inflate, raw));
+    }
+
+    private static double msPerMB(long nanos, long bytes) {
+        return nanos / 1e6 / (bytes / (double) (1 << 20));
+    }
+
+    private static long average(byte[][] frames) {
+        long total = 0;
+        for (byte[] frame : frames) total += frame.length;
+        return total / frames.length;
+    }
+
+    private static Message text(String content) {
+        return new Message(Message.MessageType.TEXT, "alice", null, content);
+    }
+
+    private static Message code(String content) {
+        return new Message(Message.MessageType.CODE, "bob", null, content);
+    }
+
+    private static Message presence(int users, int version) {
+        StringBuilder sb = new StringBuilder("S ").append(version);
+        for (int i = 0; i < users; i++) sb.append('\n').append("user").append((i * 7919 + version) % 100_000);
+        return new Message(Message.MessageType.PRESENCE, "Server", null, sb.toString());
+    }
+
+    private static final String[] WORDS = ("the build is broken again after the merge, can you check the test that "
+            + "fails on the server? I think it's the config change from yesterday, it works for me locally "
+            + "but not in staging and the logs show a timeout when the client connects").split(" ");
+
+    private static String burst(Random random) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 400) sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        return sb.toString().trim();
+    }
+
+    private static String snippet(Random random) {
+        String name = "handle" + (char) ('A' + random.nextInt(26)) + random.nextInt(100);
+        return "    @Override\n"
+                + "    public void " + name + "(Message msg) throws IOException {\n"
+                + "        if (msg == null) return;\n"
+                + "        for (int i = 0; i < msg.getContent().length(); i++) {\n"
+                + "            char c = msg.getContent().charAt(i);\n"
+                + "            if (Character.isWhitespace(c)) continue;\n"
+                + "            buffer.append(c);\n"
+                + "        }\n"
+                + "        try {\n"
+                + "            out.write(buffer.toString().getBytes(StandardCharsets.UTF_8));\n"
+                + "            out.flush();\n"
+                + "        } catch (IOException e) {\n"
+                + "            log.warn(\"" + name + " failed for \" + msg.getFrom(), e);\n"
+                + "            throw e;\n"
+                + "        } finally {\n"
+                + "            buffer.setLength(" + random.nextInt(16) + ");\n"
+                + "        }\n"
+                + "    }\n";
+    }
+
+    private static String log(Random random, int lines) {
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR"};
+        String[] events = {"connection accepted from 10.0.%d.%d", "request GET /api/users/%d took %d ms",
+                "cache miss for key session:%d (%d entries)", "retrying upstream call, attempt %d of %d"};
+        StringBuilder sb = new StringBuilder();
+        long time = 1_700_000_000_000L + random.nextInt(1_000_000);
+        for (int i = 0; i < lines; i++) {
+            time += random.nextInt(50);
+            sb.append(time).append(' ').append(levels[random.nextInt(levels.length)]).append(" [worker-")
+                    .append(random.nextInt(8)).append("] ")
+                    .append(String.format(events[random.nextInt(events.length)], random.nextInt(256), random.nextInt(1000)))
+                    .append('\n');
+            if (random.nextInt(20) == 0) {
+                sb.append("java.net.SocketTimeoutException: Read timed out\n")
+                        .append("\tat java.base/java.net.SocketInputStream.read(SocketInputStream.java:")
+                        .append(150 + random.nextInt(50)).append(")\n")
+                        .append("\tat ChatServer$ClientHandler.run(ChatServer.java:").append(400 + random.nextInt(100)).append(")\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,37 @@
+import javax.swing.Timer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Hands items from background threads to the event dispatch thread in
+// batches. post() never blocks or locks; at most once per frame (~16 ms)
+// everything posted since the last batch is passed to the consumer in one
+// call, so a burst costs one model update and one repaint, not one each.
+public class EdtQueue<T> {
+    private static final int FRAME_MILLIS = 16;
+
+    private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<T>> consumer;
+    private final Timer timer;
+
+    public EdtQueue(Consumer<List<T>> consumer) {
+        this.consumer = consumer;
+        timer = new Timer(FRAME_MILLIS, e -> drain());
+        timer.setRepeats(false);
+    }
+
+    public void post(T item) {
+        queue.add(item);
+        if (scheduled.compareAndSet(false, true)) timer.restart();
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        List<T> batch = new ArrayList<>();
+        T item;
+        while ((item = queue.poll()) != null) batch.add(item);
+        if (!batch.isEmpty()) consumer.accept(batch);
+    }
+}
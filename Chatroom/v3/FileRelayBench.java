@@ -0,0 +1,104 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Pushes a file through an in-process ChatServer from one client to
+// another: relay throughput, plus how many collections and how much GC
+// time the whole run cost. The uploader sends with transferTo and the
+// receiver writes into downloads/ exactly as ChatUI does. Files are sparse,
+// so a 4 GB run needs no disk space up front.
+//
+//   java FileRelayBench [sizeMB...]
+public class FileRelayBench {
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[] {"100", "1024"};
+        ChatServer server = new ChatServer(0);
+        server.start();
+        int port = server.getPort();
+        try {
+            for (String size : sizes) {
+                run(port, Long.parseLong(size) * 1024 * 1024);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void run(int port, long size) throws Exception {
+        File file = File.createTempFile("relay", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+
+        SocketChannel sender = connect(port);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sender.socket().getOutputStream()));
+        MessageCodec.writeHello(out, "up");
+        MessageCodec.readHelloAck(new DataInputStream(new ChannelInput(sender)));
+        SocketChannel receiver = connect(port);
+        ChannelInput input = new ChannelInput(receiver);
+        DataInputStream in = new DataInputStream(input);
+        DataOutputStream rout = new DataOutputStream(new BufferedOutputStream(receiver.socket().getOutputStream()));
+        MessageCodec.writeHello(rout, "down");
+        MessageCodec.readHelloAck(in);
+
+        long gcCount = gcCount(), gcTime = gcTime();
+        long start = System.nanoTime();
+        Thread upload = new Thread(() -> {
+            try {
+                FileTransfer.sendChunks(file, FileTransfer.transferId(file), "up", "down", 0, (header, fc, position, length) -> {
+                    out.write(MessageCodec.encodeHeader(header, length));
+                    out.flush();
+                    while (length > 0) {
+                        long n = fc.transferTo(position, length, sender);
+                        position += n;
+                        length -= (int) n;
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        upload.start();
+
+        FileTransfer.Download download = null;
+        MessageCodec.Header header;
+        while ((header = MessageCodec.readHeader(in)) != null) {
+            Message msg = header.message();
+            if (msg.getType() != Message.MessageType.FILE_CHUNK) {
+                if (header.payloadLength() > 0) input.skipFully(header.payloadLength());
+                continue;
+            }
+            if (download == null) download = new FileTransfer.Download(msg.getFileName(), msg.getTransferId(), msg.getFileSize());
+            download.write(msg, header.payloadLength(), header.inflatedLength(), input);
+            if (download.isComplete()) break;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        upload.join();
+
+        System.out.printf("%6d MB  %8.1f MB/s  %4d GCs  %5d ms GC%n", size >> 20,
+                (size >> 20) / seconds, gcCount() - gcCount, gcTime() - gcTime);
+        sender.close();
+        receiver.close();
+        Files.deleteIfExists(Paths.get("downloads", file.getName()));
+        file.delete();
+    }
+
+    private static SocketChannel connect(int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress("localhost", port));
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += gc.getCollectionCount();
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) time += gc.getCollectionTime();
+        return time;
+    }
+}
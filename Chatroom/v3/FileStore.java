@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Content-addressed store for files shared to the whole room. Each file is
+// kept once under its SHA-256, however often it is shared; clients get a
+// FILE_REF and pull the bytes when they want them. Least recently used
+// files are evicted once the store grows past its capacity.
+//
+// -Dchat.fileStore sets the directory (filestore), -Dchat.fileStoreBytes
+// the capacity (1 GB).
+public class FileStore {
+    private final Path dir;
+    private final long capacity;
+    // hash -> size, in access order
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> uploading = new HashSet<>();
+    private long size;
+
+    public FileStore() throws IOException {
+        this(Paths.get(System.getProperty("chat.fileStore", "filestore")),
+                Long.getLong("chat.fileStoreBytes", 1L << 30));
+    }
+
+    public FileStore(Path dir, long capacity) throws IOException {
+        this.dir = dir;
+        this.capacity = capacity;
+        Files.createDirectories(dir);
+        // Files from an earlier run, oldest first so they are evicted first.
+        List<Path> existing = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(dir)) {
+            entries.filter(p -> isHash(p.getFileName().toString())).forEach(existing::add);
+        }
+        existing.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+        for (Path p : existing) {
+            long length = Files.size(p);
+            files.put(p.getFileName().toString(), length);
+            size += length;
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean contains(String hash) {
+        return files.get(hash) != null;
+    }
+
+    // Starts or resumes the upload of hash. Returns null if someone else is
+    // uploading it right now.
+    public synchronized FileTransfer.Download beginUpload(String hash, long fileSize) throws IOException {
+        if (!isHash(hash) || !uploading.add(hash)) return null;
+        try {
+            return new FileTransfer.Download(dir.resolve(hash), dir.resolve(hash + ".part"), fileSize);
+        } catch (IOException e) {
+            uploading.remove(hash);
+            throw e;
+        }
+    }
+
+    public synchronized void abortUpload(String hash, FileTransfer.Download download) {
+        uploading.remove(hash);
+        try {
+            download.close();
+        } catch (IOException ignored) {}
+    }
+
+    // Called once the upload is complete. The content must hash to its name,
+    // otherwise it is thrown away and false returned.
+    public boolean commit(String hash) throws IOException {
+        Path file = dir.resolve(hash);
+        boolean valid = hash.equals(FileTransfer.contentHash(file));
+        synchronized (this) {
+            uploading.remove(hash);
+            if (!valid) {
+                Files.deleteIfExists(file);
+                return false;
+            }
+            long length = Files.size(file);
+            Long previous = files.put(hash, length);
+            size += length - (previous == null ? 0 : previous);
+            evict(hash);
+        }
+        return true;
+    }
+
+    // Null if the file is not (or no longer) in the store.
+    public FileChannel open(String hash) {
+        synchronized (this) {
+            if (files.get(hash) == null) return null;
+        }
+        try {
+            return FileChannel.open(dir.resolve(hash), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) continue;
+            try {
+                // Readers that already have it open keep going on POSIX.
+                Files.deleteIfExists(dir.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                continue;
+            }
+            size -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private static boolean isHash(String name) {
+        if (name.length() != 64) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+}
@@ -1,15 +1,203 @@
 import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
 
 public class FileTransfer {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    public interface ChunkSink {
+        // Sends header, then length bytes of file starting at position.
+        void send(Message header, FileChannel file, long position, int length) throws IOException;
+    }
+
     public static byte[] fileToBytes(File file) throws IOException {
         return Files.readAllBytes(file.toPath());
     }
 
     public static void saveBytesToFile(byte[] data, String fileName) throws IOException {
-        File dir = new File("downloads");
-        if (!dir.exists()) dir.mkdir();
-        File file = new File(dir, fileName);
-        Files.write(file.toPath(), data);
+        Files.write(downloadPath(fileName), data);
+    }
+
+    // Stable across retries of the same file, so a resumed upload lands in
+    // the same .part file on the receiving side.
+    public static String transferId(File file) {
+        return Long.toHexString(((long) file.getName().hashCode() << 32)
+                ^ file.length() * 31 ^ file.lastModified());
+    }
+
+    public static long checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    // SHA-256 of the file's content, hex encoded; names a file in the
+    // server's FileStore.
+    public static String contentHash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (fc.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Bytes of a download already on disk from an earlier, interrupted try.
+    public static long received(String fileName, String transferId) throws IOException {
+        Path target = downloadPath(fileName);
+        Path part = partPath(target, transferId);
+        return Files.exists(part) ? Files.size(part) : 0;
+    }
+
+    // Streams the file as FILE_CHUNK messages from startOffset on. Checksums
+    // are taken over a memory-mapped window and the sink moves the bytes
+    // with transferTo, so file content never lands in a Java byte[].
+    // startOffset comes from the receiver and is clamped to the file.
+    public static void sendChunks(File file, String id, String from, String to, long startOffset, ChunkSink sink) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fc.size();
+            long offset = Math.max(0, Math.min(startOffset, size));
+            long windowStart = 0;
+            MappedByteBuffer window = null;
+            do {
+                int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                if (window == null || offset + length > windowStart + window.capacity()) {
+                    windowStart = offset;
+                    window = fc.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, size - windowStart));
+                }
+                long crc = checksum(window.slice((int) (offset - windowStart), length));
+                sink.send(new Message(Message.MessageType.FILE_CHUNK, from, to, file.getName(), id,
+                        size, offset, null, crc), fc, offset, length);
+                offset += length;
+            } while (offset < size);
+        }
+    }
+
+    private static Path downloadPath(String fileName) throws IOException {
+        Path dir = Paths.get("downloads");
+        Files.createDirectories(dir);
+        // Only ever the last path element: a peer must not pick the directory.
+        return dir.resolve(Paths.get(fileName).getFileName().toString());
+    }
+
+    private static Path partPath(Path target, String transferId) {
+        return target.resolveSibling(target.getFileName() + "." + transferId + ".part");
+    }
+
+    // Receiving end of one transfer. Chunks are checked and appended to
+    // downloads/<name>.<transferId>.part, which is renamed once the file is
+    // complete. A leftover .part from an interrupted transfer is picked up
+    // where it ended.
+    public static class Download implements Closeable {
+        private final Path target;
+        private final Path part;
+        private final long fileSize;
+        private final FileChannel file;
+        // Chunks pass from the socket to the file through this direct buffer,
+        // where they are checksummed before anything is written.
+        private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        // Deflated chunks land here first; allocated with the first one.
+        private ByteBuffer packed;
+        private long received;
+        private long resumeRequestedAt = -1;
+
+        public Download(String fileName, String transferId, long fileSize) throws IOException {
+            this(downloadPath(fileName), transferId, fileSize);
+        }
+
+        private Download(Path target, String transferId, long fileSize) throws IOException {
+            this(target, partPath(target, transferId), fileSize);
+        }
+
+        public Download(Path target, Path part, long fileSize) throws IOException {
+            this.target = target;
+            this.part = part;
+            this.fileSize = fileSize;
+            this.file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.received = Math.min(file.size(), fileSize);
+            file.truncate(received);
+            if (isComplete()) finish();
+        }
+
+        // Consumes the chunk's length payload bytes from in. Returns false when
+        // chunks went missing or arrived corrupt and the sender should be
+        // asked to resume from getReceived(); asked only once per offset.
+        // Chunks we already have are skipped.
+        public boolean write(Message header, int length, ChannelInput in) throws IOException {
+            return write(header, length, -1, in);
+        }
+
+        // The same for a payload deflated from inflatedLength bytes, or not
+        // deflated if that is -1. A chunk that does not inflate counts as
+        // corrupt.
+        public boolean write(Message header, int length, int inflatedLength, ChannelInput in) throws IOException {
+            int size = inflatedLength < 0 ? length : inflatedLength;
+            if (isComplete() || header.getOffset() < received || length > CHUNK_SIZE || size > CHUNK_SIZE) {
+                in.skipFully(length);
+                return true;
+            }
+            boolean valid = false;
+            if (header.getOffset() == received) {
+                chunk.clear().limit(size);
+                boolean read = true;
+                if (inflatedLength < 0) in.readFully(chunk);
+                else read = inflate(length, in);
+                chunk.flip();
+                valid = read && checksum(chunk) == header.getChecksum();
+            } else {
+                in.skipFully(length);
+            }
+            if (!valid) {
+                if (resumeRequestedAt == received) return true;
+                resumeRequestedAt = received;
+                return false;
+            }
+            while (chunk.hasRemaining()) file.write(chunk, received + chunk.position());
+            received += size;
+            if (isComplete()) finish();
+            return true;
+        }
+
+        private boolean inflate(int length, ChannelInput in) throws IOException {
+            if (packed == null) packed = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            packed.clear().limit(length);
+            in.readFully(packed);
+            packed.flip();
+            try {
+                Compression.inflateChunk(packed, chunk);
+                return true;
+            } catch (ProtocolException e) {
+                return false;
+            }
+        }
+
+        private void finish() throws IOException {
+            file.close();
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        public long getReceived() { return received; }
+        public boolean isComplete() { return received >= fileSize; }
+
+        public void close() throws IOException {
+            file.close();
+        }
     }
 }
@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One outgoing frame, shared by every recipient: the encoded bytes, plus
+// for relayed file chunks a direct payload buffer that never touches the
+// heap. Writers send duplicate() views, so nothing is copied per recipient.
+//
+// Payload buffers are reference counted: the creator holds one reference
+// and every queued send another. The last release returns the buffer to a
+// small pool; a frame dropped without release is left to the GC.
+public final class Frame {
+    private static final int POOL_LIMIT = 256;
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final ByteBuffer header;
+    private final ByteBuffer payload;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    public Frame(byte[] encoded) {
+        this(encoded, null);
+    }
+
+    public Frame(byte[] header, ByteBuffer payload) {
+        this(ByteBuffer.wrap(header), payload);
+    }
+
+    // An already encoded frame held elsewhere, such as a MessageLog segment.
+    public Frame(ByteBuffer encoded) {
+        this(encoded, null);
+    }
+
+    private Frame(ByteBuffer header, ByteBuffer payload) {
+        this.header = header;
+        this.payload = payload;
+    }
+
+    // A direct buffer for a relayed chunk payload, limited to size; chunk
+    // sized buffers come from the pool.
+    public static ByteBuffer allocatePayload(int size) {
+        if (size > FileTransfer.CHUNK_SIZE) return ByteBuffer.allocateDirect(size);
+        ByteBuffer buf = pool.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+        } else {
+            pooled.decrementAndGet();
+            buf.clear();
+        }
+        buf.limit(size);
+        return buf;
+    }
+
+    // Appends this frame's buffers to dst starting at index, returning the
+    // next free index.
+    public int duplicateInto(ByteBuffer[] dst, int index) {
+        dst[index++] = header.duplicate();
+        if (payload != null) dst[index++] = payload.duplicate();
+        return index;
+    }
+
+    public int bufferCount() {
+        return payload == null ? 1 : 2;
+    }
+
+    public Frame retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0 && payload != null && payload.capacity() == FileTransfer.CHUNK_SIZE) {
+            if (pooled.incrementAndGet() > POOL_LIMIT) {
+                pooled.decrementAndGet();
+                return;
+            }
+            pool.add(payload);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The most recent frames of each room, and of each user's private
+// messages, kept in memory exactly as they were encoded, so catching a
+// client up costs neither disk I/O nor re-encoding. Every ring is bounded
+// by message count and by bytes, and grows to that as messages arrive.
+// A ring nobody has added to or read for a while is dropped with its
+// frames, so rooms and users that have gone quiet cost nothing:
+//
+//   -Dchat.historyCacheMessages=N    (500)
+//   -Dchat.historyCacheBytes=N       (1 MB)
+//   -Dchat.historyCacheIdleMillis=N  (600000)
+//
+// A lookup the cache cannot answer with certainty (older messages were
+// evicted, or came from before this server started) is a miss and the
+// caller falls back to the MessageLog.
+public class HistoryCache {
+    private static final int MAX_MESSAGES = Integer.getInteger("chat.historyCacheMessages", 500);
+    private static final long MAX_BYTES = Long.getLong("chat.historyCacheBytes", 1024 * 1024);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.historyCacheIdleMillis", 600_000));
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + IDLE_NANOS);
+    // Floor of each key whose ring was dropped: past everything it held.
+    // A key that never had a ring has missed nothing, floor 1.
+    private final Map<String, Long> droppedFloors = new ConcurrentHashMap<>();
+    // False if the log already held messages this cache never saw.
+    private final boolean startedEmpty;
+
+    private record Entry(long sequence, Message.MessageType type, Frame frame, int length) {}
+
+    public HistoryCache(boolean startedEmpty) {
+        this.startedEmpty = startedEmpty;
+    }
+
+    public static long hitCount() { return hits.sum(); }
+    public static long missCount() { return misses.sum(); }
+
+    // A room message: to is null. A private one goes into the rings of both
+    // ends of the conversation.
+    public void add(String room, String from, String to, Message.MessageType type, Frame frame, int length) {
+        long seq = sequence.incrementAndGet();
+        Entry entry = new Entry(seq, type, frame, length);
+        if (to == null) {
+            add(room, entry);
+        } else {
+            add("@" + to, entry);
+            if (!to.equals(from)) add("@" + from, entry);
+        }
+        long now = System.nanoTime();
+        long due = nextSweep.get();
+        if (now - due >= 0 && nextSweep.compareAndSet(due, now + IDLE_NANOS / 4)) dropIdle(now);
+    }
+
+    private void add(String key, Entry entry) {
+        // A ring dropped since it was looked up refuses; its key gets a new one.
+        while (!rings.computeIfAbsent(key, this::newRing).add(entry)) {}
+    }
+
+    // A new ring carries its key's floor from then on.
+    private Ring newRing(String key) {
+        Long floor = droppedFloors.remove(key);
+        return new Ring(floor == null ? 1 : floor);
+    }
+
+    private synchronized void dropIdle(long now) {
+        for (Map.Entry<String, Ring> e : rings.entrySet()) {
+            long floor = e.getValue().dropIfIdle(now);
+            if (floor > 0) {
+                // Recorded before the ring goes, so its replacement starts from it.
+                if (floor > 1) droppedFloors.put(e.getKey(), floor);
+                rings.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // The last limit frames of room that user may see, oldest first, each
+    // retained for the caller; null on a miss.
+    public List<Frame> recent(String room, String user, int limit, Set<Message.MessageType> skip) {
+        List<Entry> merged = new ArrayList<>();
+        long floor = Math.max(snapshot(room, merged), snapshot("@" + user, merged));
+        merged.removeIf(e -> skip.contains(e.type()));
+        merged.sort(Comparator.comparingLong(Entry::sequence));
+        // Everything from floor on is present in both rings.
+        merged.removeIf(e -> e.sequence() < floor);
+        if (merged.size() < limit && (floor > 1 || !startedEmpty)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        List<Frame> frames = new ArrayList<>(Math.min(limit, merged.size()));
+        for (Entry e : merged.subList(Math.max(0, merged.size() - limit), merged.size())) {
+            frames.add(e.frame().retain());
+        }
+        return frames;
+    }
+
+    private long snapshot(String key, List<Entry> dst) {
+        Ring ring = rings.get(key);
+        return ring == null ? droppedFloors.getOrDefault(key, 1L) : ring.snapshot(dst);
+    }
+
+    private static final class Ring {
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private long bytes;
+        // Every entry from this sequence on is still here.
+        private long floor;
+        private long lastUsed = System.nanoTime();
+        private boolean dropped;
+
+        Ring(long floor) {
+            this.floor = floor;
+        }
+
+        // False once the ring has been dropped.
+        synchronized boolean add(Entry entry) {
+            if (dropped) return false;
+            lastUsed = System.nanoTime();
+            entry.frame().retain();
+            while (!entries.isEmpty() && (entries.size() == MAX_MESSAGES || bytes + entry.length() > MAX_BYTES)) {
+                Entry oldest = entries.removeFirst();
+                bytes -= oldest.length();
+                floor = Math.max(floor, oldest.sequence() + 1);
+                oldest.frame().release();
+            }
+            entries.addLast(entry);
+            bytes += entry.length();
+            return true;
+        }
+
+        // Adds this ring's entries to dst and returns its floor.
+        synchronized long snapshot(List<Entry> dst) {
+            lastUsed = System.nanoTime();
+            dst.addAll(entries);
+            return floor;
+        }
+
+        // Releases everything if the ring has been idle for IDLE_NANOS and
+        // returns the sequence after its newest entry; 0 if still in use.
+        synchronized long dropIfIdle(long now) {
+            if (dropped || now - lastUsed < IDLE_NANOS) return 0;
+            dropped = true;
+            if (!entries.isEmpty()) floor = entries.getLast().sequence() + 1;
+            for (Entry e : entries) e.frame().release();
+            entries.clear();
+            bytes = 0;
+            return floor;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load test for the v3 binary protocol: many simulated ChatUI
+// clients against one server, a fixed open-loop send rate and a mix of
+// message kinds. Reports throughput and end-to-end latency
+// percentiles per kind, plus the server's CPU use and peak resident memory
+// when this test started it.
+//
+//   java [-Dload.*] [-Dchat.*] LoadTest
+//
+//   -Dload.server=HOST:PORT     use a running server; otherwise a
+//                               ChatServer is started in a child JVM with
+//                               this JVM's -Dchat.* options and its log and
+//                               file store in a temporary directory
+//   -Dload.clients=N            (200)
+//   -Dload.rate=N               messages sent per second, all kinds (500)
+//   -Dload.mix=KIND:WEIGHT,...  broadcast, private, code, file
+//                               (broadcast:75,private:15,code:5,file:5)
+//   -Dload.messageBytes=N       padding per message (64)
+//   -Dload.codeLines=N          lines per code snippet (10)
+//   -Dload.fileBytes=N          size of each private file, sent as one
+//                               FILE_CHUNK (16384)
+//   -Dload.warmupSeconds=N      (5)
+//   -Dload.seconds=N            measured run (20)
+//   -Dload.seed=N               (1) same seed, same sequence of messages
+//   -Dload.results=FILE         also append the results as one JSON line
+//
+// Latency runs from when a message was due to be sent, not when the sender
+// got round to it, so a stalled server shows up in the percentiles instead
+// of hiding behind a slower send rate. A file counts as delivered when its
+// last chunk arrives; receivers skip the data without storing it.
+public class LoadTest {
+    private static final String[] KINDS = {"broadcast", "private", "code", "file"};
+    private static final int BROADCAST = 0, PRIVATE = 1, CODE = 2, FILE = 3;
+
+    private static final int CLIENTS = Integer.getInteger("load.clients", 200);
+    private static final int RATE = Integer.getInteger("load.rate", 500);
+    private static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 64);
+    private static final int CODE_LINES = Integer.getInteger("load.codeLines", 10);
+    private static final int FILE_BYTES = Integer.getInteger("load.fileBytes", 16384);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 20);
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[KINDS.length];
+    private final LongAdder[] sent = new LongAdder[KINDS.length];
+    private final LongAdder[] received = new LongAdder[KINDS.length];
+    private final CountDownLatch loggedIn = new CountDownLatch(CLIENTS);
+    // Stamps older than this are warm-up traffic and not recorded.
+    private volatile long measureFrom = Long.MAX_VALUE;
+    // Log and file store of a server this test started.
+    private Path scratch;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+        System.exit(0);
+    }
+
+    private LoadTest() {
+        for (int i = 0; i < KINDS.length; i++) {
+            latency[i] = new LatencyHistogram();
+            sent[i] = new LongAdder();
+            received[i] = new LongAdder();
+        }
+    }
+
+    private void run() throws Exception {
+        int[] weights = parseMix(System.getProperty("load.mix", "broadcast:75,private:15,code:5,file:5"));
+        Random random = new Random(Long.getLong("load.seed", 1));
+        String target = System.getProperty("load.server");
+        Process server = null;
+        String host = "localhost";
+        int port;
+        if (target == null) {
+            port = freePort();
+            server = startServer(port);
+        } else {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        }
+        try {
+            awaitPort(host, port);
+            Client[] clients = new Client[CLIENTS];
+            for (int i = 0; i < CLIENTS; i++) clients[i] = new Client(i, host, port);
+            if (!loggedIn.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("clients did not all log in");
+
+            String padding = "x".repeat(MESSAGE_BYTES);
+            StringBuilder code = new StringBuilder();
+            for (int i = 0; i < CODE_LINES; i++) code.append("\n    int x").append(i).append(" = ").append(i).append(';');
+            byte[] fileData = new byte[FILE_BYTES];
+            random.nextBytes(fileData);
+            long checksum = FileTransfer.checksum(ByteBuffer.wrap(fileData));
+            long period = 1_000_000_000L / RATE;
+            long start = System.nanoTime();
+            long measureStart = start + WARMUP_SECONDS * 1_000_000_000L;
+            long end = measureStart + SECONDS * 1_000_000_000L;
+            measureFrom = measureStart;
+            long[] cpuBefore = null;
+            long sequence = 0;
+            for (long due = start; due < end; due += period) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                if (cpuBefore == null && due >= measureStart) cpuBefore = new long[] {cpuTicks(server), System.nanoTime()};
+                int kind = pick(weights, random);
+                Client from = clients[random.nextInt(CLIENTS)];
+                Client to = clients[random.nextInt(CLIENTS)];
+                String stamp = "lt " + kind + " " + due + " ";
+                switch (kind) {
+                    case BROADCAST -> from.send(new Message(Message.MessageType.TEXT, from.name, null, stamp + padding));
+                    case PRIVATE -> from.send(new Message(Message.MessageType.TEXT, from.name, to.name, stamp + padding));
+                    case CODE -> from.send(new Message(Message.MessageType.CODE, from.name,
+                            random.nextBoolean() ? to.name : null, stamp + code));
+                    case FILE -> from.send(new Message(Message.MessageType.FILE_CHUNK, from.name, to.name, stamp + "load.bin",
+                            Long.toHexString(++sequence), FILE_BYTES, 0, fileData, checksum));
+                }
+                if (due >= measureStart) sent[kind].increment();
+            }
+            // Let what is in flight arrive.
+            Thread.sleep(2000);
+            long[] cpuAfter = {cpuTicks(server), System.nanoTime()};
+            report(server, cpuBefore, cpuAfter);
+            for (Client c : clients) c.close();
+        } finally {
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+                try (var files = Files.walk(scratch)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private void report(Process server, long[] cpuBefore, long[] cpuAfter) throws IOException {
+        StringBuilder json = new StringBuilder("{\"protocol\":\"v3\",\"clients\":").append(CLIENTS)
+                .append(",\"rate\":").append(RATE).append(",\"seconds\":").append(SECONDS);
+        System.out.printf("clients=%d rate=%d/s seconds=%d%n", CLIENTS, RATE, SECONDS);
+        System.out.printf("%-10s %9s %11s %12s %9s %9s %9s %9s%n", "kind", "sent", "delivered", "delivered/s", "p50 us", "p99 us", "p999 us", "max us");
+        for (int k = 0; k < KINDS.length; k++) {
+            LatencyHistogram h = latency[k];
+            System.out.printf("%-10s %9d %11d %12.0f %9.0f %9.0f %9.0f %9.0f%n", KINDS[k], sent[k].sum(), received[k].sum(),
+                    received[k].sum() / (double) SECONDS, h.percentile(0.50) / 1e3, h.percentile(0.99) / 1e3,
+                    h.percentile(0.999) / 1e3, h.max() / 1e3);
+            json.append(",\"").append(KINDS[k]).append("\":{\"sent\":").append(sent[k].sum())
+                    .append(",\"delivered\":").append(received[k].sum())
+                    .append(",\"p50\":").append(h.percentile(0.50)).append(",\"p99\":").append(h.percentile(0.99))
+                    .append(",\"p999\":").append(h.percentile(0.999)).append(",\"max\":").append(h.max()).append('}');
+        }
+        if (server != null) {
+            double cpu = (cpuAfter[0] - cpuBefore[0]) / 100.0 / ((cpuAfter[1] - cpuBefore[1]) / 1e9);
+            long rss = peakRssKb(server);
+            System.out.printf("server cpu=%.0f%% of one core, peak rss=%d MB%n", cpu * 100, rss / 1024);
+            json.append(",\"serverCpu\":").append(String.format(Locale.ROOT, "%.3f", cpu)).append(",\"serverPeakRssKb\":").append(rss);
+        }
+        json.append('}');
+        String results = System.getProperty("load.results");
+        if (results != null) {
+            Files.writeString(Path.of(results), json + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    // Called from each client's reader with every stamped content or file
+    // name.
+    private void stamped(String line, int at) {
+        long now = System.nanoTime();
+        int kindEnd = line.indexOf(' ', at + 3);
+        int dueEnd = line.indexOf(' ', kindEnd + 1);
+        if (kindEnd < 0 || dueEnd < 0) return;
+        try {
+            int kind = Integer.parseInt(line, at + 3, kindEnd, 10);
+            long due = Long.parseLong(line, kindEnd + 1, dueEnd, 10);
+            if (due < measureFrom) return;
+            received[kind].increment();
+            latency[kind].record(now - due);
+        } catch (NumberFormatException | IndexOutOfBoundsException ignored) {}
+    }
+
+    private final class Client {
+        final String name;
+        private final Socket socket;
+        private final DataOutputStream out;
+        // As ChatUI sends, when the server reads compression.
+        private final Compression compression;
+
+        Client(int index, String host, int port) throws IOException {
+            name = "load" + index;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec.writeHello(out, name);
+            int version = MessageCodec.readHelloAck(in);
+            compression = Compression.ENABLED && version >= MessageCodec.COMPRESSION ? Compression.stream() : null;
+            Thread reader = new Thread(() -> read(in), "load-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(Message msg) throws IOException {
+            out.write(MessageCodec.encode(msg, compression));
+            out.flush();
+        }
+
+        private void read(DataInputStream in) {
+            try {
+                boolean ready = false;
+                MessageCodec.Header header;
+                while ((header = MessageCodec.readHeader(in)) != null) {
+                    if (header.payloadLength() > 0) in.skipNBytes(header.payloadLength());
+                    Message msg = header.message();
+                    String text = msg.getType() == Message.MessageType.FILE_CHUNK ? msg.getFileName() : msg.getContent();
+                    if (!ready && msg.getType() == Message.MessageType.PRESENCE) {
+                        ready = true;
+                        loggedIn.countDown();
+                    } else if (text != null && text.startsWith("lt ")) {
+                        if (msg.getType() != Message.MessageType.FILE_CHUNK
+                                || msg.getOffset() + Math.max(header.payloadLength(), header.inflatedLength()) == msg.getFileSize()) stamped(text, 0);
+                    }
+                }
+            } catch (IOException ignored) {}
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[KINDS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int kind = Arrays.asList(KINDS).indexOf(kv[0]);
+            if (kind < 0) throw new IllegalArgumentException("Unknown message kind " + kv[0] + ", expected one of " + Arrays.toString(KINDS));
+            weights[kind] = Integer.parseInt(kv[1]);
+        }
+        return weights;
+    }
+
+    private static int pick(int[] weights, Random random) {
+        int total = Arrays.stream(weights).sum();
+        int r = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) return i;
+        }
+        return 0;
+    }
+
+    private Process startServer(int port) throws IOException {
+        scratch = Files.createTempDirectory("loadtest");
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("chat.")) command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        if (System.getProperty("chat.log") == null) command.add("-Dchat.log=" + scratch.resolve("chatlog"));
+        if (System.getProperty("chat.fileStore") == null) command.add("-Dchat.fileStore=" + scratch.resolve("filestore"));
+        command.add("ChatServer");
+        command.add(String.valueOf(port));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void awaitPort(String host, int port) throws InterruptedException {
+        for (int i = 0; i < 300; i++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("no server on " + host + ":" + port);
+    }
+
+    // user + system time of the child in clock ticks (1/100 s on Linux),
+    // 0 where /proc is not available.
+    private static long cpuTicks(Process server) {
+        if (server == null) return 0;
+        try {
+            String stat = Files.readString(Path.of("/proc/" + server.pid() + "/stat"));
+            String[] f = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(f[11]) + Long.parseLong(f[12]);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static long peakRssKb(Process server) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + server.pid() + "/status"))) {
+                if (line.startsWith("VmHWM:")) return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        } catch (IOException | RuntimeException ignored) {}
+        return 0;
+    }
+}
@@ -2,7 +2,7 @@ import java.io.Serializable;
 
 public class Message implements Serializable {
     public enum MessageType {
-        TEXT, CODE, FILE, SYSTEM, USER_LIST
+        TEXT, CODE, FILE, SYSTEM, USER_LIST, FILE_CHUNK, FILE_RESUME, FILE_REF, ROOM, PRESENCE, SEARCH
     }
 
     private MessageType type;
@@ -11,6 +11,13 @@ public class Message implements Serializable {
     private String content;
     private byte[] fileData;
     private String fileName;
+    // Room of a room message or ROOM request; null for the lobby
+    private String room;
+    // FILE_CHUNK / FILE_RESUME / FILE_REF only
+    private String transferId;
+    private long fileSize;
+    private long offset;
+    private long checksum;
 
     public Message(MessageType type, String from, String to, String content) {
         this.type = type;
@@ -27,6 +34,19 @@ public class Message implements Serializable {
         this.fileData = fileData;
     }
 
+    public Message(MessageType type, String from, String to, String fileName, String transferId,
+                   long fileSize, long offset, byte[] fileData, long checksum) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.fileName = fileName;
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.offset = offset;
+        this.fileData = fileData;
+        this.checksum = checksum;
+    }
+
     // Getters
     public MessageType getType() { return type; }
     public String getFrom() { return from; }
@@ -34,4 +54,12 @@ public class Message implements Serializable {
     public String getContent() { return content; }
     public byte[] getFileData() { return fileData; }
     public String getFileName() { return fileName; }
+    public String getTransferId() { return transferId; }
+    public long getFileSize() { return fileSize; }
+    public long getOffset() { return offset; }
+    public long getChecksum() { return checksum; }
+    public String getRoom() { return room; }
+
+    public void setFrom(String from) { this.from = from; }
+    public void setRoom(String room) { this.room = room; }
 }
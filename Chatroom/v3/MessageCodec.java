@@ -0,0 +1,424 @@
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Binary wire format for Message, replacing Java serialization.
+//
+// Handshake, once per connection:
+//   client -> server  magic "CHAT", varint max version, string username
+//   server -> client  magic "CHAT", varint chosen version (0 = rejected)
+//
+// Every message after that is one frame:
+//   varint body length
+//   byte   type (Message.MessageType ordinal)
+//   varint bit set of the fields present below
+//   string from, to, content, fileName  (varint length + UTF-8)
+//   string room                         (version 4, absent for the lobby)
+//   since version 2, FILE_CHUNK / FILE_RESUME (and FILE_REF, version 3) add:
+//   string transferId, varint fileSize, varint offset, int checksum
+//   bytes  fileData                     (varint length + raw bytes)
+//
+// Version 5 replaces USER_LIST broadcasts with PRESENCE snapshots and
+// deltas (see Presence); the frame layout is unchanged.
+//
+// Version 6 adds compression (see Compression). With COMPRESSED set, the
+// fields after the bit set are replaced by their varint length and then
+// the deflated bytes (varint length + bytes). A FILE_CHUNK with
+// PAYLOAD_DEFLATED carries its fileData deflated, preceded by a varint of
+// its inflated length. The bit set was a byte before; the values below
+// 128 read the same either way.
+//
+// Version 7 adds SEARCH: a client sends its query as the content and the
+// server answers with one SEARCH message listing the hits (see
+// ChatServer.search); the frame layout is unchanged.
+//
+// fileData always comes last so a file chunk's payload can be streamed
+// straight between channels after its header.
+public final class MessageCodec {
+    public static final int VERSION = 7;
+    public static final int CHUNKED_FILES = 2;
+    public static final int FILE_STORE = 3;
+    public static final int ROOMS = 4;
+    public static final int PRESENCE = 5;
+    public static final int COMPRESSION = 6;
+    public static final int SEARCH = 7;
+    public static final int MAX_FRAME = Integer.getInteger("chat.maxFrameBytes", 64 * 1024 * 1024);
+
+    private static final int MAGIC = 0x43484154;
+    private static final int HAS_FROM = 1, HAS_TO = 2, HAS_CONTENT = 4, HAS_FILE_NAME = 8, HAS_FILE_DATA = 16, HAS_TRANSFER = 32, HAS_ROOM = 64;
+    private static final int COMPRESSED = 128, PAYLOAD_DEFLATED = 256;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    public record Hello(int version, String username) {}
+
+    // A decoded frame whose fileData (payloadLength bytes, -1 if absent) is
+    // still unread. inflatedLength is -1 unless that payload is deflated.
+    public record Header(Message message, int payloadLength, int inflatedLength) {}
+
+    private MessageCodec() {}
+
+    public static void writeHello(DataOutputStream out, String username) throws IOException {
+        out.writeInt(MAGIC);
+        writeVarint(out, VERSION);
+        writeBytes(out, username.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Throws if the peer does not speak this protocol at all.
+    public static Hello readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new ProtocolException("Not a chat client");
+        int version = readVarint(in);
+        return new Hello(version, new String(readBytes(in, 1024), StandardCharsets.UTF_8));
+    }
+
+    public static int negotiate(int clientVersion) {
+        return Math.min(clientVersion, VERSION);
+    }
+
+    public static byte[] helloAck(int version) {
+        byte[] ack = new byte[4 + varintSize(version)];
+        ack[0] = (byte) (MAGIC >>> 24);
+        ack[1] = (byte) (MAGIC >>> 16);
+        ack[2] = (byte) (MAGIC >>> 8);
+        ack[3] = (byte) MAGIC;
+        putVarint(ack, 4, version);
+        return ack;
+    }
+
+    public static int readHelloAck(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new ProtocolException("Not a chat server");
+        int version = readVarint(in);
+        if (version < 1 || version > VERSION) throw new ProtocolException("Server rejected protocol version " + VERSION);
+        return version;
+    }
+
+    // The whole frame, length prefix included, ready to be written as is to
+    // any number of connections.
+    public static byte[] encode(Message msg) {
+        byte[] fileData = msg.getFileData();
+        int payloadLength = fileData == null ? -1 : fileData.length;
+        byte[] frame = encode(msg, payloadLength, -1, Math.max(payloadLength, 0));
+        if (fileData != null) System.arraycopy(fileData, 0, frame, frame.length - fileData.length, fileData.length);
+        return frame;
+    }
+
+    // Everything up to and including the fileData length; the caller sends
+    // payloadLength bytes of file data right after it.
+    public static byte[] encodeHeader(Message msg, int payloadLength) {
+        return encode(msg, payloadLength, -1, 0);
+    }
+
+    // The same for a payload deflated with Compression.deflateChunk, which
+    // is inflatedLength bytes before compression.
+    public static byte[] encodeHeader(Message msg, int payloadLength, int inflatedLength) {
+        return encode(msg, payloadLength, inflatedLength, 0);
+    }
+
+    // encode(msg), compressed with compression when that is worth it; plain
+    // for a null compression.
+    public static byte[] encode(Message msg, Compression compression) {
+        return compress(encode(msg), compression);
+    }
+
+    // The frame with its fields deflated, or frame itself when they are
+    // under Compression.MIN_BYTES or do not shrink. Frames with fileData
+    // are left alone: chunk payloads are compressed on their own.
+    public static byte[] compress(byte[] frame, Compression compression) {
+        if (compression == null) return frame;
+        int pos = 0;
+        while ((frame[pos++] & 0x80) != 0);
+        int type = frame[pos];
+        int flags = frame[pos + 1];
+        int fieldsStart = pos + 2;
+        int fieldsLength = frame.length - fieldsStart;
+        if ((flags & (HAS_FILE_DATA | 0x80)) != 0 || fieldsLength < Compression.MIN_BYTES) return frame;
+        byte[] packed = compression.deflate(frame, fieldsStart, fieldsLength);
+        if (packed == null) return frame;
+
+        flags |= COMPRESSED;
+        int bodyLength = 1 + varintSize(flags) + varintSize(fieldsLength) + fieldSize(packed);
+        byte[] compressed = new byte[varintSize(bodyLength) + bodyLength];
+        pos = putVarint(compressed, 0, bodyLength);
+        compressed[pos++] = (byte) type;
+        pos = putVarint(compressed, pos, flags);
+        pos = putVarint(compressed, pos, fieldsLength);
+        putField(compressed, pos, packed);
+        return compressed;
+    }
+
+    private static byte[] encode(Message msg, int payloadLength, int inflatedLength, int reserve) {
+        byte[] from = utf8(msg.getFrom());
+        byte[] to = utf8(msg.getTo());
+        byte[] content = utf8(msg.getContent());
+        byte[] fileName = utf8(msg.getFileName());
+        byte[] transferId = utf8(msg.getTransferId());
+        byte[] room = utf8(msg.getRoom());
+
+        int flags = (from != null ? HAS_FROM : 0) | (to != null ? HAS_TO : 0)
+                | (content != null ? HAS_CONTENT : 0) | (fileName != null ? HAS_FILE_NAME : 0)
+                | (payloadLength >= 0 ? HAS_FILE_DATA : 0) | (transferId != null ? HAS_TRANSFER : 0)
+                | (room != null ? HAS_ROOM : 0) | (inflatedLength >= 0 ? PAYLOAD_DEFLATED : 0);
+        int headerLength = 1 + varintSize(flags) + fieldSize(from) + fieldSize(to) + fieldSize(content) + fieldSize(fileName) + fieldSize(room);
+        if (transferId != null) {
+            headerLength += fieldSize(transferId) + varlongSize(msg.getFileSize()) + varlongSize(msg.getOffset()) + 4;
+        }
+        if (inflatedLength >= 0) headerLength += varintSize(inflatedLength);
+        if (payloadLength >= 0) headerLength += varintSize(payloadLength);
+        int bodyLength = headerLength + Math.max(payloadLength, 0);
+
+        byte[] frame = new byte[varintSize(bodyLength) + headerLength + reserve];
+        int pos = putVarint(frame, 0, bodyLength);
+        frame[pos++] = (byte) msg.getType().ordinal();
+        pos = putVarint(frame, pos, flags);
+        pos = putField(frame, pos, from);
+        pos = putField(frame, pos, to);
+        pos = putField(frame, pos, content);
+        pos = putField(frame, pos, fileName);
+        pos = putField(frame, pos, room);
+        if (transferId != null) {
+            pos = putField(frame, pos, transferId);
+            pos = putVarlong(frame, pos, msg.getFileSize());
+            pos = putVarlong(frame, pos, msg.getOffset());
+            int checksum = (int) msg.getChecksum();
+            frame[pos++] = (byte) (checksum >>> 24);
+            frame[pos++] = (byte) (checksum >>> 16);
+            frame[pos++] = (byte) (checksum >>> 8);
+            frame[pos++] = (byte) checksum;
+        }
+        if (inflatedLength >= 0) pos = putVarint(frame, pos, inflatedLength);
+        if (payloadLength >= 0) putVarint(frame, pos, payloadLength);
+        return frame;
+    }
+
+    // Returns null at a clean end of stream.
+    public static Message read(DataInputStream in) throws IOException {
+        return read(in, Compression.frames());
+    }
+
+    public static Message read(DataInputStream in, Compression compression) throws IOException {
+        Header header = readHeader(in, compression);
+        if (header == null) return null;
+        if (header.payloadLength() < 0) return header.message();
+        return withFileData(header.message(), readPayload(in, header.payloadLength()));
+    }
+
+    // length bytes, in a buffer that grows as they arrive: the length is
+    // the peer's word, so only what it really sends gets allocated.
+    public static byte[] readPayload(DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[Math.min(length, 64 * 1024)];
+        int n = 0;
+        while (n < length) {
+            if (n == b.length) b = Arrays.copyOf(b, (int) Math.min(length, 2L * n));
+            int read = in.read(b, n, b.length - n);
+            if (read < 0) throw new EOFException();
+            n += read;
+        }
+        return b;
+    }
+
+    // Reads a frame up to its fileData and leaves the payload on the stream.
+    // Returns null at a clean end of stream. Compressed frames are read as
+    // the server sends them.
+    public static Header readHeader(DataInputStream in) throws IOException {
+        return readHeader(in, Compression.frames());
+    }
+
+    // compression inflates compressed frames; null refuses them.
+    public static Header readHeader(DataInputStream in, Compression compression) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int length = readVarint(in, first);
+        if (length < 2 || length > MAX_FRAME) throw new ProtocolException("Bad frame length " + length);
+        Body body = new Body(in, length);
+
+        int typeIndex = body.u8();
+        if (typeIndex >= TYPES.length) throw new ProtocolException("Unknown message type " + typeIndex);
+        Message.MessageType type = TYPES[typeIndex];
+        int flags = body.varint();
+
+        Body fields = body;
+        if ((flags & COMPRESSED) != 0) {
+            if (compression == null) throw new ProtocolException("Compressed frame not negotiated");
+            int rawLength = body.varint();
+            if (rawLength > MAX_FRAME) throw new ProtocolException("Bad frame length " + rawLength);
+            byte[] raw = compression.inflate(body.bytes(), rawLength);
+            fields = new Body(new DataInputStream(new ByteArrayInputStream(raw)), raw.length);
+        }
+
+        String from = (flags & HAS_FROM) != 0 ? fields.string() : null;
+        String to = (flags & HAS_TO) != 0 ? fields.string() : null;
+        String content = (flags & HAS_CONTENT) != 0 ? fields.string() : null;
+        String fileName = (flags & HAS_FILE_NAME) != 0 ? fields.string() : null;
+        String room = (flags & HAS_ROOM) != 0 ? fields.string() : null;
+
+        Message msg;
+        if ((flags & HAS_TRANSFER) != 0) {
+            String transferId = fields.string();
+            long fileSize = fields.varlong();
+            long offset = fields.varlong();
+            long checksum = (long) fields.u8() << 24 | fields.u8() << 16 | fields.u8() << 8 | fields.u8();
+            msg = new Message(type, from, to, fileName, transferId, fileSize, offset, null, checksum);
+        } else if (type == Message.MessageType.FILE) {
+            msg = new Message(from, to, fileName, null);
+        } else {
+            msg = new Message(type, from, to, content);
+        }
+        msg.setRoom(room);
+        if (fields != body && fields.remaining != 0) throw new ProtocolException("Trailing bytes in compressed fields");
+
+        int inflatedLength = -1;
+        if ((flags & PAYLOAD_DEFLATED) != 0) {
+            inflatedLength = body.varint();
+            if (inflatedLength > MAX_FRAME) throw new ProtocolException("Bad payload length " + inflatedLength);
+        }
+        int payloadLength = -1;
+        if ((flags & HAS_FILE_DATA) != 0) {
+            payloadLength = body.varint();
+            if (payloadLength != body.remaining) throw new ProtocolException("Payload does not fill frame");
+        } else if (body.remaining != 0) {
+            throw new ProtocolException("Trailing bytes in frame");
+        }
+        if (inflatedLength >= 0 && payloadLength < 0) throw new ProtocolException("Deflated payload missing");
+        return new Header(msg, payloadLength, inflatedLength);
+    }
+
+    public static Message withFileData(Message msg, byte[] fileData) {
+        Message copy;
+        if (msg.getTransferId() != null) {
+            copy = new Message(msg.getType(), msg.getFrom(), msg.getTo(), msg.getFileName(), msg.getTransferId(),
+                    msg.getFileSize(), msg.getOffset(), fileData, msg.getChecksum());
+        } else if (msg.getType() == Message.MessageType.FILE) {
+            copy = new Message(msg.getFrom(), msg.getTo(), msg.getFileName(), fileData);
+        } else {
+            return msg;
+        }
+        copy.setRoom(msg.getRoom());
+        return copy;
+    }
+
+    // Bounds every read to the declared frame length.
+    private static final class Body {
+        private final DataInputStream in;
+        private int remaining;
+
+        Body(DataInputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        int u8() throws IOException {
+            if (--remaining < 0) throw new ProtocolException("Field overruns frame");
+            return in.readUnsignedByte();
+        }
+
+        int varint() throws IOException {
+            long value = varlong();
+            if (value > Integer.MAX_VALUE) throw new ProtocolException("Length out of range");
+            return (int) value;
+        }
+
+        long varlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        byte[] bytes() throws IOException {
+            int length = varint();
+            if (length > remaining) throw new ProtocolException("Field overruns frame");
+            byte[] b = readPayload(in, length);
+            remaining -= length;
+            return b;
+        }
+
+        String string() throws IOException {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] field) {
+        return field == null ? 0 : varintSize(field.length) + field.length;
+    }
+
+    private static int putField(byte[] dst, int pos, byte[] field) {
+        if (field == null) return pos;
+        pos = putVarint(dst, pos, field.length);
+        System.arraycopy(field, 0, dst, pos, field.length);
+        return pos + field.length;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static int putVarint(byte[] dst, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int varlongSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static int putVarlong(byte[] dst, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        return readVarint(in, in.readUnsignedByte());
+    }
+
+    private static int readVarint(DataInputStream in, int first) throws IOException {
+        int value = first & 0x7f;
+        int b = first;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift >= 35) throw new ProtocolException("Malformed varint");
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int max) throws IOException {
+        int length = readVarint(in);
+        if (length < 0 || length > max) throw new ProtocolException("Field too long");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+// Append-only history of chat messages, kept as the encoded frames that
+// went out on the wire. Records are copied into memory-mapped segment
+// files, so an append never waits on the disk; a background thread forces
+// dirty pages out every chat.logSyncMillis.
+//
+// <n>.log, one record after another:
+//   int    length of the rest of the record (0 = end of segment)
+//   long   timestamp (ms)
+//   byte   Message.MessageType ordinal
+//   string room, from, to  (short length + UTF-8; to is empty for the room)
+//   bytes  frame
+// <n>.index, one entry per record:
+//   long timestamp, int position in <n>.log, int room hash (PRIVATE for
+//   private messages, which follow their users from room to room), int
+//   previous entry in this segment with the same hash (-1 for none)
+//
+// The last entry of each hash is kept in memory, so history() follows a
+// room's chain instead of reading every entry. A segment without a
+// <n>.index, such as one from before the chain, has it rebuilt from its
+// records on open.
+//
+// A record's address is its segment number and position, as one long.
+//
+// -Dchat.log sets the directory (chatlog), -Dchat.logSegmentBytes the size
+// of a segment (64 MB).
+public class MessageLog implements Closeable {
+    private static final int INDEX_ENTRY = 20;
+    // A record is at least 21 bytes, so this many index bytes per data
+    // byte is enough for all but the tiniest frames; either file filling up
+    // rolls the segment.
+    private static final int INDEX_RATIO = 2;
+    private static final int PRIVATE = 0x80000001;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ScheduledExecutorService sync;
+    private Segment active;
+    // Mapped ahead of time on the sync thread so a roll does not stall an
+    // append; null until the active segment is half full.
+    private Segment next;
+    private boolean preparing;
+
+    // A record as read back; frame is a read-only view of the mapped segment.
+    public record Record(long address, long timestamp, Message.MessageType type, String room, String from, String to,
+                         ByteBuffer frame) {
+        public Message message() {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            try {
+                return MessageCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public MessageLog() throws IOException {
+        this(Paths.get(System.getProperty("chat.log", "chatlog")),
+                Integer.getInteger("chat.logSegmentBytes", 64 * 1024 * 1024),
+                Long.getLong("chat.logSyncMillis", 1000));
+    }
+
+    public MessageLog(Path dir, int segmentBytes, long syncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(dir)) {
+            entries.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(0, name.length() - 4))));
+        }
+        Collections.sort(numbers);
+        for (long number : numbers) {
+            segments.put(number, new Segment(number));
+        }
+        if (segments.isEmpty()) segments.put(0L, new Segment(0));
+        active = segments.lastEntry().getValue();
+        if (!active.rebuilt) active.recover();
+        sync = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-log-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        sync.scheduleWithFixedDelay(this::force, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.size() == 1 && active.entries == 0;
+    }
+
+    // Logging must never hold up a broadcast, so failures are reported and
+    // the record dropped. Returns the record's address, -1 if dropped.
+    public synchronized long append(Message.MessageType type, String room, String from, String to, byte[] frame) {
+        byte[] r = utf8(room), f = utf8(from), t = utf8(to);
+        int length = 8 + 1 + 6 + r.length + f.length + t.length + frame.length;
+        if (4 + length > segmentBytes) return -1;
+        try {
+            if (!active.fits(4 + length)) roll();
+        } catch (IOException e) {
+            System.err.println("Message log error: " + e.getMessage());
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        MappedByteBuffer data = active.data;
+        int start = active.end;
+        int pos = start + 4;
+        data.putLong(pos, now);
+        data.put(pos + 8, (byte) type.ordinal());
+        pos = putString(data, pos + 9, r);
+        pos = putString(data, pos, f);
+        pos = putString(data, pos, t);
+        data.put(pos, frame);
+        // Length last: a record is not there until its length is.
+        data.putInt(start, length);
+
+        active.addEntry(now, start, indexHash(room, to));
+        active.end = start + 4 + length;
+        if (!preparing && active.end > segmentBytes / 2) {
+            preparing = true;
+            long number = active.number + 1;
+            sync.execute(() -> prepare(number));
+        }
+        return active.number << 32 | start;
+    }
+
+    // The record at an address append returned, null if there is none.
+    public Record read(long address) {
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get(address >>> 32);
+        }
+        return segment == null ? null : segment.read((int) address);
+    }
+
+    // Every record, oldest first, as of when this was called.
+    public void forEach(java.util.function.Consumer<Record> action) {
+        List<Segment> oldestFirst;
+        int[] counts;
+        synchronized (this) {
+            oldestFirst = new ArrayList<>(segments.values());
+            counts = new int[oldestFirst.size()];
+            for (int i = 0; i < counts.length; i++) counts[i] = oldestFirst.get(i).entries;
+        }
+        for (int s = 0; s < counts.length; s++) {
+            Segment segment = oldestFirst.get(s);
+            for (int i = 0; i < counts[s]; i++) action.accept(segment.read(segment.index.getInt(i * INDEX_ENTRY + 8)));
+        }
+    }
+
+    private void prepare(long number) {
+        try {
+            Segment segment = new Segment(number);
+            if (!segment.rebuilt) segment.recover();
+            synchronized (this) {
+                if (number == active.number + 1) next = segment;
+            }
+        } catch (IOException e) {
+            System.err.println("Message log error: " + e.getMessage());
+        }
+    }
+
+    // The last limit frames of room that user may see (the room's own plus
+    // private messages to or from user, wherever they were sent), oldest
+    // first. Each is a read-only
+    // view of the mapped segment: nothing is copied or re-encoded. Frames of
+    // types in skip are left out.
+    public List<ByteBuffer> history(String room, String user, int limit, Set<Message.MessageType> skip) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        int hash = roomHash(room);
+        Message.MessageType[] types = Message.MessageType.values();
+        // Records below each segment's entry count are never written again,
+        // so only the counts need the lock.
+        List<Segment> newestFirst;
+        int[] counts;
+        synchronized (this) {
+            newestFirst = new ArrayList<>(segments.descendingMap().values());
+            counts = new int[newestFirst.size()];
+            for (int i = 0; i < counts.length; i++) counts[i] = newestFirst.get(i).entries;
+        }
+        for (int s = 0; s < counts.length && frames.size() < limit; s++) {
+            Segment segment = newestFirst.get(s);
+            // The room's chain and the private one, merged newest first.
+            int roomNext = segment.last(hash, counts[s]);
+            int privateNext = hash == PRIVATE ? -1 : segment.last(PRIVATE, counts[s]);
+            while ((roomNext >= 0 || privateNext >= 0) && frames.size() < limit) {
+                int i;
+                if (roomNext > privateNext) {
+                    i = roomNext;
+                    roomNext = segment.previous(i);
+                } else {
+                    i = privateNext;
+                    privateNext = segment.previous(i);
+                }
+                ByteBuffer record = segment.record(segment.index.getInt(i * INDEX_ENTRY + 8));
+                Message.MessageType type = types[record.get(8)];
+                record.position(9);
+                String recordRoom = getString(record);
+                String from = getString(record);
+                String to = getString(record);
+                if (skip.contains(type)) continue;
+                if (to.isEmpty() ? recordRoom.equals(room) : from.equals(user) || to.equals(user)) frames.add(record.slice());
+            }
+        }
+        Collections.reverse(frames);
+        return frames;
+    }
+
+    private void roll() throws IOException {
+        // The full segment is flushed on the sync thread, not under the lock.
+        sync.execute(active::force);
+        if (next == null) {
+            next = new Segment(active.number + 1);
+            if (!next.rebuilt) next.recover();
+        }
+        active = next;
+        next = null;
+        preparing = false;
+        segments.put(active.number, active);
+    }
+
+    private void force() {
+        Segment segment;
+        synchronized (this) {
+            segment = active;
+        }
+        segment.force();
+    }
+
+    public void close() {
+        sync.shutdownNow();
+        force();
+    }
+
+    private static int roomHash(String room) {
+        return room == null ? 0 : room.hashCode();
+    }
+
+    private static int indexHash(String room, String to) {
+        return to == null || to.isEmpty() ? roomHash(room) : PRIVATE;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int putString(ByteBuffer dst, int pos, byte[] s) {
+        dst.putShort(pos, (short) s.length);
+        dst.put(pos + 2, s);
+        return pos + 2 + s.length;
+    }
+
+    private static String getString(ByteBuffer src) {
+        int length = src.getShort() & 0xffff;
+        byte[] b = new byte[length];
+        src.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private final class Segment {
+        final long number;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        // hash -> its newest entry. Written under the log's lock.
+        final Map<Integer, Integer> lastByHash = new ConcurrentHashMap<>();
+        // True if the index had to be rebuilt, which recover() has done.
+        final boolean rebuilt;
+        int end;
+        int entries;
+
+        Segment(long number) throws IOException {
+            this.number = number;
+            String name = String.format("%020d", number);
+            Path indexFile = dir.resolve(name + ".index");
+            boolean missing = !Files.exists(indexFile);
+            try (FileChannel log = FileChannel.open(dir.resolve(name + ".log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel idx = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                data = log.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+                index = idx.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentBytes / INDEX_RATIO);
+            }
+            if (missing) {
+                Files.deleteIfExists(dir.resolve(name + ".idx"));
+                recover();
+                rebuilt = true;
+                return;
+            }
+            rebuilt = false;
+            // Timestamps are never 0, so the first empty entry ends the index.
+            int lo = 0, hi = index.capacity() / INDEX_ENTRY;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY) != 0) lo = mid + 1;
+                else hi = mid;
+            }
+            entries = lo;
+            for (int i = 0; i < entries; i++) lastByHash.put(index.getInt(i * INDEX_ENTRY + 12), i);
+            end = segmentBytes;
+        }
+
+        void addEntry(long timestamp, int pos, int hash) {
+            int entry = entries * INDEX_ENTRY;
+            index.putLong(entry, timestamp);
+            index.putInt(entry + 8, pos);
+            index.putInt(entry + 12, hash);
+            Integer previous = lastByHash.get(hash);
+            index.putInt(entry + 16, previous == null ? -1 : previous);
+            // Published once the entry is complete, for history() to follow.
+            lastByHash.put(hash, entries);
+            entries++;
+        }
+
+        // The newest entry below entries with this hash, -1 if none.
+        int last(int hash, int entries) {
+            Integer i = lastByHash.get(hash);
+            int entry = i == null ? -1 : i;
+            while (entry >= entries) entry = previous(entry);
+            return entry;
+        }
+
+        int previous(int entry) {
+            return index.getInt(entry * INDEX_ENTRY + 16);
+        }
+
+        // Finds the end of the segment appends go to. It may have been cut
+        // short by a crash, so its index is rebuilt from the records that
+        // made it to disk.
+        void recover() {
+            int pos = 0;
+            entries = 0;
+            lastByHash.clear();
+            while (pos + 4 <= segmentBytes) {
+                int length = data.getInt(pos);
+                if (length <= 0 || pos + 4 + length > segmentBytes) break;
+                if ((entries + 1) * INDEX_ENTRY > index.capacity()) break;
+                ByteBuffer record = record(pos);
+                record.position(9);
+                String room = getString(record);
+                getString(record); // from
+                addEntry(record.getLong(0), pos, indexHash(room, getString(record)));
+                pos += 4 + length;
+            }
+            for (int entry = entries * INDEX_ENTRY; entry < index.capacity() && index.getLong(entry) != 0; entry += INDEX_ENTRY) {
+                index.putLong(entry, 0);
+            }
+            end = pos;
+        }
+
+        boolean fits(int length) {
+            return end + length <= data.capacity() && (entries + 1) * INDEX_ENTRY <= index.capacity();
+        }
+
+        // The record at pos without its length prefix, positioned at 0.
+        ByteBuffer record(int pos) {
+            int length = data.getInt(pos);
+            return data.slice(pos + 4, length).asReadOnlyBuffer();
+        }
+
+        Record read(int pos) {
+            ByteBuffer record = record(pos);
+            Message.MessageType type = Message.MessageType.values()[record.get(8)];
+            record.position(9);
+            String room = getString(record);
+            String from = getString(record);
+            String to = getString(record);
+            return new Record(number << 32 | pos, record.getLong(0), type, room, from, to, record.slice());
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+    }
+}
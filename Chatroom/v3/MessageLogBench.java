@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+// Append latency of MessageLog for a typical chat line, and how long the
+// history replayed on join takes to collect. Writes into a temporary
+// directory that is removed afterwards.
+//
+//   java MessageLogBench [messages] [history]
+public class MessageLogBench {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int history = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Path dir = Files.createTempDirectory("chatlog");
+        byte[] frame = MessageCodec.encode(new Message(Message.MessageType.TEXT, "alice", null,
+                "anyone up for lunch at noon? the place on the corner has a new menu"));
+
+        try (MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 1000)) {
+            long[] samples = new long[messages];
+            for (int i = 0; i < messages; i++) {
+                long start = System.nanoTime();
+                log.append(Message.MessageType.TEXT, "", "alice", i % 100 == 0 ? "bob" : null, frame);
+                samples[i] = System.nanoTime() - start;
+            }
+            // The first half warms up the JIT.
+            long[] measured = Arrays.copyOfRange(samples, messages / 2, messages);
+            Arrays.sort(measured);
+            System.out.printf("append ns: p50=%d p99=%d p999=%d max=%d%n",
+                    percentile(measured, 0.50), percentile(measured, 0.99),
+                    percentile(measured, 0.999), measured[measured.length - 1]);
+
+            int rounds = 10_000;
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                for (ByteBuffer b : log.history("", "carol", history, Set.of())) sink += b.remaining();
+            }
+            System.out.printf("history of %d: %.1f us (%d)%n", history, (System.nanoTime() - start) / 1000.0 / rounds, sink);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}
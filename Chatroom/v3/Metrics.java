@@ -0,0 +1,211 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+// Server counters, gauges and latency histograms in one registry, readable
+// over JMX (chat:type=Metrics) and, with -Dchat.metricsPort=N, as
+// Prometheus text from http://<chat.metricsHost>:N/metrics (127.0.0.1).
+//
+// Counters are LongAdders and histograms are LatencyHistograms, so the
+// hot path only ever pays for an uncontended add; everything else,
+// including gauges, is computed when the metrics are read.
+public final class Metrics {
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+    private static HttpServer http;
+    private static ObjectName mbean;
+
+    private Metrics() {}
+
+    private static final class Family {
+        final String name, help, type, label;
+        // label value ("" without a label) -> LongAdder, LongSupplier,
+        // DoubleSupplier or LatencyHistogram
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    public static LongAdder counter(String name, String help) {
+        return counter(name, help, null, "");
+    }
+
+    // One series of a counter family split by label, e.g. messages by type.
+    public static LongAdder counter(String name, String help, String label, String value) {
+        return (LongAdder) family(name, help, "counter", label).series.computeIfAbsent(value, k -> new LongAdder());
+    }
+
+    // A counter kept elsewhere, read when the metrics are.
+    public static void counter(String name, String help, LongSupplier value) {
+        family(name, help, "counter", null).series.put("", value);
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        family(name, help, "gauge", null).series.put("", value);
+    }
+
+    // Records nanoseconds, reported in seconds.
+    public static LatencyHistogram histogram(String name, String help) {
+        return (LatencyHistogram) family(name, help, "summary", null).series.computeIfAbsent("", k -> new LatencyHistogram());
+    }
+
+    private static Family family(String name, String help, String type, String label) {
+        return families.computeIfAbsent(name, k -> new Family(name, help, type, label));
+    }
+
+    // Registers the MBean and starts the HTTP endpoint if configured.
+    public static synchronized void start() throws IOException {
+        if (mbean == null) {
+            try {
+                mbean = new ObjectName("chat:type=Metrics");
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (!server.isRegistered(mbean)) server.registerMBean(new Bean(), mbean);
+            } catch (JMException e) {
+                throw new IOException(e);
+            }
+        }
+        Integer port = Integer.getInteger("chat.metricsPort");
+        if (port != null && http == null) {
+            http = HttpServer.create(new InetSocketAddress(System.getProperty("chat.metricsHost", "127.0.0.1"), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "chat-metrics");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+        }
+    }
+
+    public static synchronized void stop() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+        if (mbean != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+            } catch (JMException ignored) {}
+            mbean = null;
+        }
+    }
+
+    // Prometheus text exposition format.
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (Family f : new TreeMap<>(families).values()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> s : new TreeMap<>(f.series).entrySet()) {
+                String labels = f.label == null ? "" : "{" + f.label + "=\"" + s.getKey() + "\"}";
+                if (s.getValue() instanceof LatencyHistogram h) {
+                    for (double q : new double[] {0.5, 0.99, 0.999}) {
+                        sb.append(f.name).append("{quantile=\"").append(q).append("\"} ").append(seconds(h.percentile(q))).append('\n');
+                    }
+                    sb.append(f.name).append("_sum ").append(seconds(h.sum())).append('\n');
+                    sb.append(f.name).append("_count ").append(h.count()).append('\n');
+                } else {
+                    sb.append(f.name).append(labels).append(' ').append(number(value(s.getValue()))).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    // name or name.labelValue -> value, histograms as name.count, name.p50,
+    // name.p99, name.p999 and name.max in seconds.
+    private static Map<String, Object> attributes() {
+        Map<String, Object> attributes = new TreeMap<>();
+        for (Family f : families.values()) {
+            for (Map.Entry<String, Object> s : f.series.entrySet()) {
+                String name = f.label == null ? f.name : f.name + "." + s.getKey();
+                if (s.getValue() instanceof LatencyHistogram h) {
+                    attributes.put(name + ".count", h.count());
+                    attributes.put(name + ".p50", seconds(h.percentile(0.5)));
+                    attributes.put(name + ".p99", seconds(h.percentile(0.99)));
+                    attributes.put(name + ".p999", seconds(h.percentile(0.999)));
+                    attributes.put(name + ".max", seconds(h.max()));
+                } else {
+                    attributes.put(name, value(s.getValue()));
+                }
+            }
+        }
+        return attributes;
+    }
+
+    private static Number value(Object series) {
+        if (series instanceof LongAdder a) return a.sum();
+        if (series instanceof LongSupplier s) return s.getAsLong();
+        return ((DoubleSupplier) series).getAsDouble();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String number(Number n) {
+        return n instanceof Double d ? String.valueOf(d) : String.valueOf(n.longValue());
+    }
+
+    // Read-only view of the registry; attributes are whatever is registered
+    // at the time the bean is asked.
+    private static final class Bean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> all = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (all.containsKey(name)) list.add(new Attribute(name, all.get(name)));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Object> a : attributes().entrySet()) {
+                infos.add(new MBeanAttributeInfo(a.getKey(), a.getValue().getClass().getName(), a.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
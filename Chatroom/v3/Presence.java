@@ -0,0 +1,150 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Who is online, told to each client once as a snapshot when it logs in
+// and then only as changes. Joins and leaves are collected for
+// -Dchat.presenceMillis (100) and go out together as one versioned delta,
+// so a burst of reconnects costs every client one frame, not one full list
+// per reconnect. The PRESENCE content is line based:
+//
+//   S <version>            snapshot, one name per following line
+//   D <from> <to>          delta from version from to version to,
+//   +name / -name          one joined or left user per following line
+//
+// A client that sees a delta not starting at its version asks for a new
+// snapshot with USER_LIST. Clients before MessageCodec.PRESENCE still get
+// a comma-joined USER_LIST, once per flush instead of once per change.
+//
+// Snapshots are of the users as of the last delta, the version they are
+// labelled with, so the next delta brings a new client up to date like
+// everyone else. Frames are built under the lock and sent, in that order,
+// from the presence thread, so a client slow to take them never holds up
+// a login or logout.
+public class Presence {
+    private static final long FLUSH_MILLIS = Long.getLong("chat.presenceMillis", 100);
+    // More changes than this in one flush are announced as a count.
+    private static final int NOTICE_LIMIT = 10;
+
+    public interface Subscriber {
+        void send(Frame frame);
+        // False for clients that only understand USER_LIST.
+        boolean wantsDeltas();
+        // True for clients that read compressed frames.
+        boolean compresses();
+    }
+
+    private final Set<String> users = new TreeSet<>();
+    // users as of version, which snapshots show.
+    private final Set<String> flushed = new TreeSet<>();
+    // name -> online, for changes not sent yet. A name that toggles twice
+    // between flushes is back where it was and drops out.
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-presence");
+        t.setDaemon(true);
+        return t;
+    });
+    private long version;
+    private boolean flushScheduled;
+
+    public synchronized void join(Subscriber subscriber, String username) {
+        users.add(username);
+        change(username, true);
+        subscribers.add(subscriber);
+        sendSnapshot(subscriber);
+    }
+
+    public synchronized void leave(Subscriber subscriber, String username) {
+        subscribers.remove(subscriber);
+        users.remove(username);
+        change(username, false);
+    }
+
+    // A client that lost track asks for the whole list again.
+    public synchronized void resend(Subscriber subscriber) {
+        if (subscribers.contains(subscriber)) sendSnapshot(subscriber);
+    }
+
+    public synchronized void stop() {
+        timer.shutdownNow();
+    }
+
+    private void change(String username, boolean online) {
+        if (pending.remove(username) == null) pending.put(username, online);
+        if (!flushScheduled && !timer.isShutdown()) {
+            flushScheduled = true;
+            timer.schedule(this::flush, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendSnapshot(Subscriber subscriber) {
+        Frame frame = new Frame(MessageCodec.encode(subscriber.wantsDeltas() ? snapshot() : legacyList(),
+                subscriber.compresses() ? Compression.frames() : null));
+        deliver(() -> {
+            subscriber.send(frame);
+            frame.release();
+        });
+    }
+
+    // Called under the lock: sends run on the presence thread in the order
+    // they were handed over.
+    private void deliver(Runnable sends) {
+        if (!timer.isShutdown()) timer.execute(sends);
+    }
+
+    private Message snapshot() {
+        StringBuilder sb = new StringBuilder("S ").append(version);
+        for (String user : flushed) sb.append('\n').append(user);
+        return new Message(Message.MessageType.PRESENCE, "Server", null, sb.toString());
+    }
+
+    private Message legacyList() {
+        return new Message(Message.MessageType.USER_LIST, "Server", null, String.join(",", flushed));
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (pending.isEmpty()) return;
+        StringBuilder delta = new StringBuilder("D ").append(version).append(' ').append(++version);
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+            delta.append('\n').append(change.getValue() ? '+' : '-').append(change.getKey());
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        pending.clear();
+        flushed.addAll(joined);
+        flushed.removeAll(left);
+
+        List<Frame> notices = new ArrayList<>();
+        if (joined.size() + left.size() <= NOTICE_LIMIT) {
+            for (String user : joined) notices.add(notice(user + " joined."));
+            for (String user : left) notices.add(notice(user + " left."));
+        } else {
+            notices.add(notice(left.isEmpty() ? joined.size() + " users joined."
+                    : joined.isEmpty() ? left.size() + " users left."
+                    : joined.size() + " users joined, " + left.size() + " left."));
+        }
+        byte[] encoded = MessageCodec.encode(new Message(Message.MessageType.PRESENCE, "Server", null, delta.toString()));
+        Frame deltaFrame = new Frame(encoded);
+        byte[] packed = MessageCodec.compress(encoded, Compression.frames());
+        Frame packedDelta = packed == encoded ? deltaFrame.retain() : new Frame(packed);
+        Frame legacyFrame = new Frame(MessageCodec.encode(legacyList()));
+        List<Subscriber> recipients = new ArrayList<>(subscribers);
+        deliver(() -> {
+            for (Subscriber subscriber : recipients) {
+                for (Frame notice : notices) subscriber.send(notice);
+                subscriber.send(subscriber.compresses() ? packedDelta : subscriber.wantsDeltas() ? deltaFrame : legacyFrame);
+            }
+            deltaFrame.release();
+            packedDelta.release();
+            legacyFrame.release();
+            for (Frame notice : notices) notice.release();
+        });
+    }
+
+    private static Frame notice(String text) {
+        return new Frame(MessageCodec.encode(new Message(Message.MessageType.SYSTEM, "Server", null, text)));
+    }
+}
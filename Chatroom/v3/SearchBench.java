@@ -0,0 +1,89 @@
+import java.util.*;
+
+// How fast SearchIndex takes messages in and answers queries over them:
+// messages drawn from a Zipf-distributed vocabulary, as chat is, from 1000
+// users in 20 rooms, a tenth of them code. Prints indexing throughput,
+// posting bytes per message, then search latency percentiles per kind of
+// query once the background merges have settled.
+//
+//   java [-Dchat.searchBufferDocs=N] [-Dchat.searchMergeFactor=N] SearchBench [messages] [queries]
+public class SearchBench {
+    private static final int VOCABULARY = 50_000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(1);
+        double[] cumulative = zipf(VOCABULARY);
+        String[] rooms = new String[20];
+        for (int i = 0; i < rooms.length; i++) rooms[i] = i == 0 ? "" : "room" + i;
+
+        SearchIndex index = new SearchIndex();
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            boolean code = random.nextInt(10) == 0;
+            int words = code ? 40 + random.nextInt(80) : 3 + random.nextInt(20);
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < words; w++) text.append(word(random, cumulative)).append(' ');
+            String to = random.nextInt(20) == 0 ? "user" + random.nextInt(1000) : null;
+            index.add(i, now - (messages - i) * 1000L, code ? Message.MessageType.CODE : Message.MessageType.TEXT,
+                    rooms[random.nextInt(rooms.length)], "user" + random.nextInt(1000), to, text.toString());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int segments;
+        do {
+            segments = index.segmentCount();
+            Thread.sleep(500);
+        } while (segments != index.segmentCount());
+        System.out.printf("indexed %d messages in %.1f s (%.0f/s), %d segments after %d merges, %.1f posting bytes per message%n",
+                messages, seconds, messages / seconds, index.segmentCount(), SearchIndex.mergeCount(),
+                index.postingBytes() / (double) messages);
+
+        Map<String, java.util.function.Supplier<String>> kinds = new LinkedHashMap<>();
+        kinds.put("common word", () -> "w" + random.nextInt(10));
+        kinds.put("rare word", () -> "w" + (1000 + random.nextInt(VOCABULARY - 1000)));
+        kinds.put("two words", () -> word(random, cumulative) + " " + word(random, cumulative));
+        kinds.put("common+rare", () -> "w" + random.nextInt(10) + " w" + (1000 + random.nextInt(9000)));
+        kinds.put("from: + word", () -> "from:user" + random.nextInt(1000) + " " + word(random, cumulative));
+        kinds.put("type:code + word", () -> "type:code " + word(random, cumulative));
+        kinds.put("from: only", () -> "from:user" + random.nextInt(1000));
+
+        long sink = 0;
+        System.out.printf("%-18s %9s %9s %9s %10s%n", "query", "p50 us", "p99 us", "max us", "matches");
+        for (int round = 0; round < 2; round++) {
+            for (Map.Entry<String, java.util.function.Supplier<String>> kind : kinds.entrySet()) {
+                long[] samples = new long[queries];
+                long matches = 0;
+                for (int q = 0; q < queries; q++) {
+                    String query = kind.getValue().get();
+                    long t = System.nanoTime();
+                    SearchIndex.Result result = index.search(query, "user" + random.nextInt(1000), 20);
+                    samples[q] = System.nanoTime() - t;
+                    matches += result.matches();
+                    sink += result.hits().size();
+                }
+                Arrays.sort(samples);
+                if (round == 1) {
+                    System.out.printf("%-18s %9.0f %9.0f %9.0f %10d%n", kind.getKey(), samples[queries / 2] / 1e3,
+                            samples[Math.min(queries - 1, queries * 99 / 100)] / 1e3, samples[queries - 1] / 1e3, matches / queries);
+                }
+            }
+        }
+        if (sink == 42) System.out.println(); // keeps the JIT from dropping the loops
+        index.stop();
+    }
+
+    private static double[] zipf(int n) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) cumulative[i] = sum += 1.0 / (i + 1);
+        for (int i = 0; i < n; i++) cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    private static String word(Random random, double[] cumulative) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return "w" + (i < 0 ? -i - 1 : i);
+    }
+}
@@ -0,0 +1,510 @@
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Full-text search over the logged messages: an inverted index from terms
+// to the messages that contain them, kept up to date as messages are
+// logged and rebuilt from the MessageLog at startup. A message is known by
+// its doc id, handed out in logging order, and found again in the log by
+// the address append returned for it.
+//
+// Terms are the lowercased words (runs of letters, digits and _) of the
+// text, or of a shared file's name, plus one "from:<sender>",
+// "type:<text|code|file>" and "in:<room|lobby>" term each, so a query is
+// words and filters alike, all of which must match:
+//
+//   parseConfig type:code from:alice
+//
+// New messages go into an in-memory buffer. Every -Dchat.searchBufferDocs
+// (8192) it is frozen into an immutable segment: terms sorted, each
+// posting list a run of (doc id gap, term frequency) varints, with a skip
+// entry every SKIP postings so intersecting a rare term with a common one
+// jumps over most of the common one. Segments merge on a background thread
+// in tiers: once -Dchat.searchMergeFactor (8) segments of the same size
+// pile up they become one, so a search visits a handful of segments and a
+// message is rewritten a logarithmic number of times.
+//
+// Hits rank by BM25 over the words, boosted up to twice for recent
+// messages; a query of filters alone lists the newest first. Private
+// messages only match for the two ends of the conversation.
+public class SearchIndex {
+    private static final int BUFFER_DOCS = Integer.getInteger("chat.searchBufferDocs", 8192);
+    private static final int MERGE_FACTOR = Math.max(2, Integer.getInteger("chat.searchMergeFactor", 8));
+    private static final int SKIP = 64;
+    private static final int MAX_TERM = 64;
+    private static final double K1 = 1.2, B = 0.75;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final LongAdder merges = new LongAdder();
+
+    public record Hit(long address, long timestamp, double score) {}
+
+    // How many messages matched and the best of them, best first.
+    public record Result(int matches, List<Hit> hits) {}
+
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-search-merge");
+        t.setDaemon(true);
+        return t;
+    });
+    // Guarded by this; segments is replaced, never changed, so a search
+    // can use the list it saw without the lock.
+    private final Docs docs = new Docs();
+    private Map<String, Postings> buffer = new HashMap<>();
+    private int bufferStart;
+    private List<Segment> segments = List.of();
+    private boolean merging;
+
+    // What of a logged message is searched for.
+    public static String text(Message msg) {
+        String text = msg.getType() == Message.MessageType.FILE_REF ? msg.getFileName() : msg.getContent();
+        return text == null ? "" : text;
+    }
+
+    // room is "" for the lobby, to null or empty for a room message.
+    public void add(long address, long timestamp, Message.MessageType type, String room, String from, String to, String text) {
+        Map<String, int[]> terms = new HashMap<>();
+        int length = tokenize(text, terms);
+        terms.put("from:" + from.toLowerCase(Locale.ROOT), new int[] {1});
+        terms.put("type:" + typeName(type), new int[] {1});
+        terms.put("in:" + (room.isEmpty() ? "lobby" : room.toLowerCase(Locale.ROOT)), new int[] {1});
+        synchronized (this) {
+            int doc = docs.add(address, timestamp, from, to == null || to.isEmpty() ? null : to, length);
+            for (Map.Entry<String, int[]> term : terms.entrySet()) {
+                buffer.computeIfAbsent(term.getKey(), k -> new Postings()).add(doc, term.getValue()[0]);
+            }
+            if (docs.count - bufferStart >= BUFFER_DOCS) freeze();
+        }
+    }
+
+    // The best limit matches of query that user may see.
+    public Result search(String query, String user, int limit) {
+        Set<String> words = new LinkedHashSet<>();
+        Set<String> filters = new LinkedHashSet<>();
+        for (String part : query.trim().split("\\s+")) {
+            String filter = filter(part);
+            if (filter != null) filters.add(filter);
+            else tokenize(part, words);
+        }
+        List<String> terms = new ArrayList<>(words);
+        terms.addAll(filters);
+        if (terms.isEmpty() || limit <= 0) return new Result(0, List.of());
+
+        List<Segment> searched;
+        Docs.View view;
+        Cursor[] buffered = new Cursor[terms.size()];
+        synchronized (this) {
+            searched = segments;
+            view = docs.view(user);
+            for (int i = 0; i < buffered.length; i++) {
+                Postings postings = buffer.get(terms.get(i));
+                if (postings != null) buffered[i] = postings.copy();
+            }
+        }
+        if (view.count() == 0) return new Result(0, List.of());
+
+        List<Cursor[]> sources = new ArrayList<>();
+        sources.add(buffered);
+        for (int s = searched.size() - 1; s >= 0; s--) {
+            Cursor[] cursors = new Cursor[terms.size()];
+            for (int i = 0; i < cursors.length; i++) cursors[i] = searched.get(s).cursor(terms.get(i));
+            sources.add(cursors);
+        }
+        double[] idf = new double[words.size()];
+        for (int i = 0; i < idf.length; i++) {
+            long df = 0;
+            for (Cursor[] cursors : sources) df += cursors[i] == null ? 0 : cursors[i].df;
+            idf[i] = Math.log(1 + (view.count() - df + 0.5) / (df + 0.5));
+        }
+
+        Comparator<Hit> worstFirst = Comparator.comparingDouble(Hit::score).thenComparingLong(Hit::timestamp);
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1, worstFirst);
+        double averageLength = Math.max(1, view.totalLength() / (double) view.count());
+        long now = System.currentTimeMillis();
+        int matches = 0;
+        for (Cursor[] cursors : sources) {
+            if (Arrays.asList(cursors).contains(null)) continue;
+            // The rarest term leads; the others only ever skip forward to it.
+            Integer[] order = new Integer[cursors.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> cursors[i].df));
+            Cursor lead = cursors[order[0]];
+            int target = 0;
+            candidates:
+            while (lead.advance(target)) {
+                target = lead.doc;
+                for (int k = 1; k < order.length; k++) {
+                    Cursor other = cursors[order[k]];
+                    if (!other.advance(target)) break candidates;
+                    if (other.doc > target) {
+                        target = other.doc;
+                        continue candidates;
+                    }
+                }
+                int doc = target++;
+                if (!view.visible(doc)) continue;
+                matches++;
+                double score = 0;
+                int length = view.lengths()[doc];
+                for (int i = 0; i < idf.length; i++) {
+                    int tf = cursors[i].tf;
+                    score += idf[i] * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+                }
+                long timestamp = view.times()[doc];
+                score *= 1 + 1 / (1 + Math.max(0, now - timestamp) / (double) DAY_MILLIS);
+                Hit hit = new Hit(view.addresses()[doc], timestamp, score);
+                if (top.size() < limit) {
+                    top.add(hit);
+                } else if (worstFirst.compare(hit, top.peek()) > 0) {
+                    top.poll();
+                    top.add(hit);
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(worstFirst.reversed());
+        return new Result(matches, hits);
+    }
+
+    public void stop() {
+        merger.shutdownNow();
+    }
+
+    public synchronized int documentCount() {
+        return docs.count;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    // Encoded posting bytes over all frozen segments.
+    public synchronized long postingBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) bytes += segment.postings.length;
+        return bytes;
+    }
+
+    public static long mergeCount() {
+        return merges.sum();
+    }
+
+    private static String typeName(Message.MessageType type) {
+        return type == Message.MessageType.FILE_REF ? "file" : type.name().toLowerCase(Locale.ROOT);
+    }
+
+    // "from:Alice" -> "from:alice", "in:#dev" -> "in:dev"; null if part is
+    // not a filter.
+    private static String filter(String part) {
+        int colon = part.indexOf(':');
+        if (colon < 0 || colon == part.length() - 1) return null;
+        String field = part.substring(0, colon).toLowerCase(Locale.ROOT);
+        String value = part.substring(colon + 1).toLowerCase(Locale.ROOT);
+        return switch (field) {
+            case "from", "type" -> field + ":" + value;
+            case "in" -> "in:" + (value.startsWith("#") ? value.substring(1) : value);
+            default -> null;
+        };
+    }
+
+    // Counts each word of text into terms; returns how many there were.
+    private static int tokenize(String text, Map<String, int[]> terms) {
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                if (i - start <= MAX_TERM) {
+                    terms.computeIfAbsent(text.substring(start, i).toLowerCase(Locale.ROOT), k -> new int[1])[0]++;
+                    count++;
+                }
+                start = -1;
+            }
+        }
+        return count;
+    }
+
+    private static void tokenize(String text, Set<String> words) {
+        Map<String, int[]> terms = new LinkedHashMap<>();
+        tokenize(text, terms);
+        words.addAll(terms.keySet());
+    }
+
+    // Under the lock: the buffer becomes the newest segment.
+    private void freeze() {
+        String[] terms = buffer.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        Postings[] lists = new Postings[terms.length];
+        for (int i = 0; i < terms.length; i++) lists[i] = buffer.get(terms[i]);
+        List<Segment> frozen = new ArrayList<>(segments);
+        frozen.add(new Segment(bufferStart, docs.count - bufferStart, terms, lists));
+        segments = List.copyOf(frozen);
+        buffer = new HashMap<>();
+        bufferStart = docs.count;
+        maybeMerge();
+    }
+
+    // Under the lock: merges the oldest MERGE_FACTOR segments of the
+    // smallest tier that has that many in a row, one merge at a time.
+    private void maybeMerge() {
+        if (merging || merger.isShutdown()) return;
+        int from = -1, fromTier = Integer.MAX_VALUE;
+        for (int i = 0, j; i < segments.size(); i = j) {
+            int tier = segments.get(i).tier();
+            for (j = i + 1; j < segments.size() && segments.get(j).tier() == tier; j++);
+            if (j - i >= MERGE_FACTOR && tier < fromTier) {
+                from = i;
+                fromTier = tier;
+            }
+        }
+        if (from < 0) return;
+        List<Segment> run = List.copyOf(segments.subList(from, from + MERGE_FACTOR));
+        merging = true;
+        merger.execute(() -> {
+            Segment merged = merge(run);
+            synchronized (this) {
+                List<Segment> replaced = new ArrayList<>(segments);
+                int at = replaced.indexOf(run.get(0));
+                replaced.subList(at, at + run.size()).clear();
+                replaced.add(at, merged);
+                segments = List.copyOf(replaced);
+                merging = false;
+                merges.increment();
+                maybeMerge();
+            }
+        });
+    }
+
+    // Segments cover consecutive doc ids in order, so each term's merged
+    // list is its lists one after the other.
+    private static Segment merge(List<Segment> run) {
+        PriorityQueue<int[]> next = new PriorityQueue<>((a, b) -> {
+            int c = run.get(a[0]).terms[a[1]].compareTo(run.get(b[0]).terms[b[1]]);
+            return c != 0 ? c : Integer.compare(a[0], b[0]);
+        });
+        int docCount = 0;
+        for (int s = 0; s < run.size(); s++) {
+            if (run.get(s).terms.length > 0) next.add(new int[] {s, 0});
+            docCount += run.get(s).docCount;
+        }
+        List<String> terms = new ArrayList<>();
+        List<Postings> lists = new ArrayList<>();
+        while (!next.isEmpty()) {
+            int[] head = next.poll();
+            String term = run.get(head[0]).terms[head[1]];
+            if (terms.isEmpty() || !terms.get(terms.size() - 1).equals(term)) {
+                terms.add(term);
+                lists.add(new Postings());
+            }
+            Postings merged = lists.get(lists.size() - 1);
+            Segment segment = run.get(head[0]);
+            Cursor cursor = segment.cursor(head[1]);
+            while (cursor.next()) merged.add(cursor.doc, cursor.tf);
+            if (++head[1] < segment.terms.length) next.add(head);
+        }
+        return new Segment(run.get(0).firstDoc, docCount, terms.toArray(new String[0]), lists.toArray(new Postings[0]));
+    }
+
+    private static int putVarint(byte[] dst, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            dst[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Per message, by doc id. The arrays are replaced as they grow, so a
+    // search keeps the ones it saw under the lock and only looks at the
+    // docs there were then, which are never written again.
+    private static final class Docs {
+        private final Map<String, Integer> userIds = new HashMap<>();
+        private long[] addresses = new long[1024];
+        private long[] times = new long[1024];
+        private int[] senders = new int[1024];
+        // -1 for a room message.
+        private int[] recipients = new int[1024];
+        private int[] lengths = new int[1024];
+        private int count;
+        private long totalLength;
+
+        record View(long[] addresses, long[] times, int[] senders, int[] recipients, int[] lengths,
+                    int count, long totalLength, int user) {
+            boolean visible(int doc) {
+                return recipients[doc] < 0 || recipients[doc] == user || senders[doc] == user;
+            }
+        }
+
+        int add(long address, long timestamp, String from, String to, int length) {
+            if (count == addresses.length) {
+                int size = count * 2;
+                addresses = Arrays.copyOf(addresses, size);
+                times = Arrays.copyOf(times, size);
+                senders = Arrays.copyOf(senders, size);
+                recipients = Arrays.copyOf(recipients, size);
+                lengths = Arrays.copyOf(lengths, size);
+            }
+            addresses[count] = address;
+            times[count] = timestamp;
+            senders[count] = userId(from);
+            recipients[count] = to == null ? -1 : userId(to);
+            lengths[count] = length;
+            totalLength += length;
+            return count++;
+        }
+
+        View view(String user) {
+            Integer id = userIds.get(user);
+            return new View(addresses, times, senders, recipients, lengths, count, totalLength, id == null ? -2 : id);
+        }
+
+        private int userId(String name) {
+            return userIds.computeIfAbsent(name, k -> userIds.size());
+        }
+    }
+
+    // One term's posting list as it is built: (doc id gap, frequency)
+    // varints, and before every SKIP postings a skip entry of the doc id
+    // just before and the byte offset.
+    private static final class Postings {
+        private byte[] bytes = new byte[16];
+        private int size;
+        private int[] skips = new int[0];
+        private int skipSize;
+        private int df;
+        private int lastDoc = -1;
+
+        void add(int doc, int tf) {
+            if (df > 0 && df % SKIP == 0) {
+                if (skipSize == skips.length) skips = Arrays.copyOf(skips, Math.max(8, skipSize * 2));
+                skips[skipSize++] = lastDoc;
+                skips[skipSize++] = size;
+            }
+            if (size + 10 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            size = putVarint(bytes, size, doc - lastDoc);
+            size = putVarint(bytes, size, tf);
+            lastDoc = doc;
+            df++;
+        }
+
+        // For a search, which must not see postings added after it started.
+        Cursor copy() {
+            return new Cursor(Arrays.copyOf(bytes, size), 0, size, Arrays.copyOf(skips, skipSize), 0, skipSize, df);
+        }
+    }
+
+    // The postings of every term, back to back, with the skip entries of
+    // every term in one more array.
+    private static final class Segment {
+        final int firstDoc;
+        final int docCount;
+        final String[] terms;
+        final int[] dfs;
+        // terms.length + 1 offsets into postings and into skips.
+        final int[] offsets;
+        final int[] skipOffsets;
+        final byte[] postings;
+        final int[] skips;
+
+        Segment(int firstDoc, int docCount, String[] terms, Postings[] lists) {
+            this.firstDoc = firstDoc;
+            this.docCount = docCount;
+            this.terms = terms;
+            dfs = new int[terms.length];
+            offsets = new int[terms.length + 1];
+            skipOffsets = new int[terms.length + 1];
+            for (int i = 0; i < terms.length; i++) {
+                dfs[i] = lists[i].df;
+                offsets[i + 1] = offsets[i] + lists[i].size;
+                skipOffsets[i + 1] = skipOffsets[i] + lists[i].skipSize;
+            }
+            postings = new byte[offsets[terms.length]];
+            skips = new int[skipOffsets[terms.length]];
+            for (int i = 0; i < terms.length; i++) {
+                System.arraycopy(lists[i].bytes, 0, postings, offsets[i], lists[i].size);
+                // Skip offsets are relative to the term's own list.
+                for (int k = 0; k < lists[i].skipSize; k += 2) {
+                    skips[skipOffsets[i] + k] = lists[i].skips[k];
+                    skips[skipOffsets[i] + k + 1] = lists[i].skips[k + 1] + offsets[i];
+                }
+            }
+        }
+
+        // 0 for a frozen buffer, one more for every MERGE_FACTOR times bigger.
+        int tier() {
+            int tier = 0;
+            for (long size = (long) BUFFER_DOCS * MERGE_FACTOR; docCount >= size; size *= MERGE_FACTOR) tier++;
+            return tier;
+        }
+
+        Cursor cursor(String term) {
+            int i = Arrays.binarySearch(terms, term);
+            return i < 0 ? null : cursor(i);
+        }
+
+        Cursor cursor(int i) {
+            return new Cursor(postings, offsets[i], offsets[i + 1], skips, skipOffsets[i], skipOffsets[i + 1], dfs[i]);
+        }
+    }
+
+    private static final class Cursor {
+        private final byte[] bytes;
+        private final int end;
+        private final int[] skips;
+        private final int skipEnd;
+        private final int df;
+        private int pos;
+        private int skip;
+        int doc = -1;
+        int tf;
+
+        Cursor(byte[] bytes, int start, int end, int[] skips, int skipStart, int skipEnd, int df) {
+            this.bytes = bytes;
+            this.pos = start;
+            this.end = end;
+            this.skips = skips;
+            this.skip = skipStart;
+            this.skipEnd = skipEnd;
+            this.df = df;
+        }
+
+        boolean next() {
+            if (pos >= end) {
+                doc = Integer.MAX_VALUE;
+                return false;
+            }
+            doc += readVarint();
+            tf = readVarint();
+            return true;
+        }
+
+        // Moves to the first posting at or after target, skipping whole
+        // blocks that end before it.
+        boolean advance(int target) {
+            if (doc >= target) return doc != Integer.MAX_VALUE;
+            while (skip < skipEnd && skips[skip] < target) {
+                if (skips[skip + 1] > pos) {
+                    doc = skips[skip];
+                    pos = skips[skip + 1];
+                }
+                skip += 2;
+            }
+            while (doc < target) {
+                if (!next()) return false;
+            }
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Executors for the blocking engines. Virtual threads need Java 21; on an
+// older runtime the virtual mode falls back to platform threads.
+public final class ServerThreads {
+    private ServerThreads() {}
+
+    public static boolean virtualThreadsAvailable() {
+        return virtualFactory() != null;
+    }
+
+    public static ExecutorService newExecutor(boolean virtual, String name) {
+        if (virtual) {
+            Method factory = virtualFactory();
+            if (factory != null) {
+                try {
+                    return (ExecutorService) factory.invoke(null);
+                } catch (ReflectiveOperationException ignored) {}
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> new Thread(r, name + "-" + count.incrementAndGet()));
+    }
+
+    private static Method virtualFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
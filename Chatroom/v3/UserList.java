@@ -0,0 +1,96 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.util.*;
+
+// The online users as a sorted, searchable list with "Public" on top.
+// Rows have a fixed height and the model is a plain array rebuilt once per
+// update, so ten thousand names cost nothing to scroll or filter. EDT only.
+public class UserList {
+    public static final String PUBLIC = "Public";
+
+    private final SortedSet<String> users = new TreeSet<>(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+    private final JTextField search = new JTextField();
+    private final Model model = new Model();
+    private final JList<String> list = new JList<>(model);
+    private final JPanel panel = new JPanel(new BorderLayout());
+    private String self;
+
+    public UserList() {
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFixedCellHeight(20);
+        list.setPrototypeCellValue("WWWWWWWWWWWWWWWW");
+        list.setSelectedIndex(0);
+        search.setToolTipText("Search users");
+        search.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { refresh(); }
+            public void removeUpdate(DocumentEvent e) { refresh(); }
+            public void changedUpdate(DocumentEvent e) { refresh(); }
+        });
+        panel.add(search, BorderLayout.NORTH);
+        panel.add(new JScrollPane(list), BorderLayout.CENTER);
+    }
+
+    public JComponent getComponent() {
+        return panel;
+    }
+
+    // Left out of the list.
+    public void setSelf(String username) {
+        self = username;
+    }
+
+    // The selected user, or PUBLIC.
+    public String getSelected() {
+        String selected = list.getSelectedValue();
+        return selected == null ? PUBLIC : selected;
+    }
+
+    public void setAll(Collection<String> names) {
+        users.clear();
+        users.addAll(names);
+        refresh();
+    }
+
+    public void update(Collection<String> joined, Collection<String> left) {
+        users.removeAll(left);
+        users.addAll(joined);
+        refresh();
+    }
+
+    private void refresh() {
+        String selected = getSelected();
+        String filter = search.getText().trim().toLowerCase(Locale.ROOT);
+        java.util.List<String> rows = new ArrayList<>(users.size() + 1);
+        rows.add(PUBLIC);
+        for (String user : users) {
+            if (user.equals(self)) continue;
+            if (filter.isEmpty() || user.toLowerCase(Locale.ROOT).contains(filter)) rows.add(user);
+        }
+        model.setRows(rows.toArray(new String[0]));
+        int index = Arrays.asList(model.rows).indexOf(selected);
+        list.setSelectedIndex(Math.max(index, 0));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Model extends AbstractListModel<String> {
+        private String[] rows = {PUBLIC};
+
+        void setRows(String[] rows) {
+            int old = this.rows.length;
+            this.rows = rows;
+            if (old > rows.length) fireIntervalRemoved(this, rows.length, old - 1);
+            fireContentsChanged(this, 0, Math.min(old, rows.length) - 1);
+            if (rows.length > old) fireIntervalAdded(this, old, rows.length - 1);
+        }
+
+        public int getSize() {
+            return rows.length;
+        }
+
+        public String getElementAt(int index) {
+            return rows[index];
+        }
+    }
+}